@@ -0,0 +1,369 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import hudson.model.Computer;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.remoting.ChannelBuilder;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+import hudson.slaves.SlaveComputer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import net.sf.json.JSONObject;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Runs thousands of builds of a project using the First plugin against a simulated fleet of agents, and reports
+ * the throughput, the growth of the heap of master and how long the pages of the plugin take to render.
+ *
+ * Jenkins is started by a {@link JenkinsRule}, outside of JUnit. The project has a {@link FirstBuilder} probing
+ * the whole fleet, and a {@link FirstRecorder}. The fleet is a few real agents started as separate processes, and
+ * hundreds of {@link DumbSlave}s connected by an {@link InJvmLauncher}: a remoting channel to the agent side, which
+ * runs in this JVM. Every probe goes through the {@link FirstFleetProbe}, remoting and the {@link FirstProbeGuard}
+ * as on a real farm. The agent side of a simulated agent waits a random time before it handles each request,
+ * and drops a share of them, so the probes see latency and agents that never answer.
+ *
+ * At every sample the harness also times {@link FirstBuildIndex#getLastBuildAction()} on the project, once right
+ * after the indexes are forgotten, as after a restart of Jenkins, and on average over many calls once it is cached.
+ *
+ * Since the simulated agents share this JVM, they all find the same java version, and they share one
+ * {@link FirstProbeCache} where a real agent has its own. The harness makes that cache large enough to hold an entry
+ * for every simulated agent, so none of them loses its entry to another.
+ *
+ * Everything is set with system properties:
+ * <ul>
+ * <li>agents - simulated agents, default 300</li>
+ * <li>realAgents - agents started as separate processes, default 2</li>
+ * <li>builds - builds to run, default 1000</li>
+ * <li>latencyMillis - mean time a simulated agent waits before handling a request, default 50</li>
+ * <li>failureRate - share of requests a simulated agent never answers, default 0.01</li>
+ * <li>threads - agents probed at the same time, the fleet threads of the builder, default 16</li>
+ * <li>timeoutSeconds - the fleet timeout of the builder, default 5</li>
+ * <li>sampleEvery - builds between measurements of heap and page render time, default 100</li>
+ * <li>report - where the JSON report is written, default target/load-report.json</li>
+ * </ul>
+ *
+ * See benchmarks/pom.xml for how to run it.
+ *
+ * @author Praqma
+ */
+public final class FirstLoadHarness {
+
+    static final int AGENTS = Integer.getInteger("agents", 300);
+    static final int REAL_AGENTS = Integer.getInteger("realAgents", 2);
+    static final int BUILDS = Integer.getInteger("builds", 1000);
+    static final int LATENCY_MILLIS = Integer.getInteger("latencyMillis", 50);
+    static final double FAILURE_RATE = Double.parseDouble(System.getProperty("failureRate", "0.01"));
+    static final int THREADS = Integer.getInteger("threads", 16);
+    static final int TIMEOUT_SECONDS = Integer.getInteger("timeoutSeconds", 5);
+    static final int SAMPLE_EVERY = Integer.getInteger("sampleEvery", 100);
+    static final String REPORT = System.getProperty("report", "target/load-report.json");
+
+    private FirstLoadHarness() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        //Before the cache is loaded, one entry for each simulated agent and master, in every probe mode
+        System.setProperty(FirstProbeCache.class.getName() + ".maxEntries",
+                String.valueOf((AGENTS + 1) * FirstRemoteOperation.ProbeMode.values().length));
+        final JenkinsRule rule = new JenkinsRule();
+        //The run takes as long as it takes
+        rule.timeout = 0;
+        rule.apply(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                run(rule);
+            }
+        }, Description.createTestDescription(FirstLoadHarness.class, "load")).evaluate();
+        //Agent processes and Jenkins' own threads would keep the JVM alive
+        System.exit(0);
+    }
+
+    private static void run(JenkinsRule rule) throws Exception {
+        for(int i = 0; i < REAL_AGENTS; i++) {
+            rule.createOnlineSlave();
+        }
+        long connectStarted = System.nanoTime();
+        List<Future<?>> connecting = new ArrayList<Future<?>>();
+        for(int i = 0; i < AGENTS; i++) {
+            DumbSlave slave = new DumbSlave("simulated-" + i, "", rule.createTmpDir().getPath(), "1", Node.Mode.EXCLUSIVE,
+                    "simulated", new InJvmLauncher(), RetentionStrategy.NOOP, Collections.<NodeProperty<?>>emptyList());
+            rule.jenkins.addNode(slave);
+            connecting.add(slave.toComputer().connect(false));
+        }
+        for(Future<?> connected : connecting) {
+            connected.get();
+        }
+        long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStarted);
+        //Only now, a dropped request during the handshake would keep the agent from connecting
+        InJvmLauncher.faulty = true;
+
+        FreeStyleProject project = rule.createFreeStyleProject("first-load");
+        FirstBuilder builder = new FirstBuilder(true);
+        builder.setProbeFleet(true);
+        builder.setFleetThreads(THREADS);
+        builder.setFleetTimeout(TIMEOUT_SECONDS);
+        project.getBuildersList().add(builder);
+        project.getPublishersList().add(new FirstRecorder());
+
+        JenkinsRule.WebClient web = rule.createWebClient();
+        List<Long> buildMillis = new ArrayList<Long>();
+        List<Long> jobPageMillis = new ArrayList<Long>();
+        List<Long> projectActionMillis = new ArrayList<Long>();
+        List<Long> inventoryMillis = new ArrayList<Long>();
+        List<Long> lastActionColdMicros = new ArrayList<Long>();
+        List<Long> lastActionCachedNanos = new ArrayList<Long>();
+        List<Long> heapBytes = new ArrayList<Long>();
+        int unstable = 0;
+        long staleRows = 0;
+        long rows = 0;
+
+        heapBytes.add(usedHeap());
+        long started = System.nanoTime();
+        for(int i = 1; i <= BUILDS; i++) {
+            long buildStarted = System.nanoTime();
+            FreeStyleBuild build = project.scheduleBuild2(0).get();
+            buildMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - buildStarted));
+            if(build.getResult() == Result.UNSTABLE) {
+                unstable++;
+            } else if(build.getResult() != Result.SUCCESS) {
+                throw new IllegalStateException(build + " ended " + build.getResult() + ": " + rule.getLog(build));
+            }
+            FirstBuildAction action = build.getAction(FirstBuildAction.class);
+            if(action != null) {
+                for(int row = 0; row < action.size(); row++) {
+                    if(action.isStale(row)) {
+                        staleRows++;
+                    }
+                }
+                rows += action.size();
+            }
+
+            if(i % SAMPLE_EVERY == 0 || i == BUILDS) {
+                jobPageMillis.add(render(web, project.getUrl()));
+                projectActionMillis.add(render(web, project.getUrl() + "firstprojectaction/"));
+                inventoryMillis.add(render(web, "first-inventory/"));
+                lastActionColdMicros.add(lastBuildActionCold(rule, project));
+                lastActionCachedNanos.add(lastBuildActionCached(project));
+                heapBytes.add(usedHeap());
+                System.out.println(String.format("%d builds, %d MB heap", i, heapBytes.get(heapBytes.size() - 1) / (1024 * 1024)));
+            }
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        JSONObject report = new JSONObject();
+        report.put("agents", AGENTS);
+        report.put("realAgents", REAL_AGENTS);
+        report.put("builds", BUILDS);
+        report.put("latencyMillis", LATENCY_MILLIS);
+        report.put("failureRate", FAILURE_RATE);
+        report.put("threads", THREADS);
+        report.put("timeoutSeconds", TIMEOUT_SECONDS);
+        report.put("storage", FirstConfiguration.get().getStorage().name());
+        report.put("connectMillis", connectMillis);
+        report.put("elapsedMillis", elapsedMillis);
+        report.put("buildsPerMinute", BUILDS * 60000.0 / Math.max(1, elapsedMillis));
+        report.put("unstableBuilds", unstable);
+        report.put("rows", rows);
+        report.put("staleRows", staleRows);
+        report.put("buildMillis", summary(buildMillis));
+        report.put("jobPageMillis", summary(jobPageMillis));
+        report.put("projectActionMillis", summary(projectActionMillis));
+        report.put("inventoryPageMillis", summary(inventoryMillis));
+        report.put("lastBuildActionColdMicros", summary(lastActionColdMicros));
+        report.put("lastBuildActionCachedNanos", summary(lastActionCachedNanos));
+        report.put("heapBytes", heapBytes);
+        report.put("heapGrowthBytes", heapBytes.get(heapBytes.size() - 1) - heapBytes.get(0));
+
+        File file = new File(REPORT);
+        if(file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(report.toString(2));
+        } finally {
+            out.close();
+        }
+        System.out.println(report.toString(2));
+    }
+
+    private static long render(JenkinsRule.WebClient web, String url) throws Exception {
+        long started = System.nanoTime();
+        HtmlPage page = web.goTo(url);
+        page.getWebResponse().getContentAsString();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+
+    /**
+     * Times finding the last action right after the indexes are forgotten, the way they are when Jenkins reloads, so
+     * the index is read from disk and the last build looked up.
+     *
+     * @return the time it took, in microseconds
+     */
+    private static long lastBuildActionCold(JenkinsRule rule, FreeStyleProject project) {
+        rule.jenkins.getExtensionList(ItemListener.class).get(FirstBuildIndex.ItemListenerImpl.class).onLoaded();
+        long started = System.nanoTime();
+        if(FirstBuildIndex.of(project).getLastBuildAction() == null) {
+            throw new IllegalStateException("No action found on " + project);
+        }
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started);
+    }
+
+    /**
+     * Times finding the last action the way the project page does it, once the index has it.
+     *
+     * @return the average time of a call, in nanoseconds
+     */
+    private static long lastBuildActionCached(FreeStyleProject project) {
+        final int calls = 10000;
+        FirstBuildIndex.of(project).getLastBuildAction();
+        long started = System.nanoTime();
+        for(int i = 0; i < calls; i++) {
+            FirstBuildIndex.of(project).getLastBuildAction();
+        }
+        return (System.nanoTime() - started) / calls;
+    }
+
+    /**
+     * @return the heap in use after a full collection, as good as it gets for what the builds keep
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static JSONObject summary(List<Long> samples) {
+        List<Long> sorted = new ArrayList<Long>(samples);
+        Collections.sort(sorted);
+        JSONObject summary = new JSONObject();
+        summary.put("count", sorted.size());
+        if(!sorted.isEmpty()) {
+            summary.put("p50", sorted.get(sorted.size() / 2));
+            summary.put("p95", sorted.get(Math.min(sorted.size() - 1, sorted.size() * 95 / 100)));
+            summary.put("max", sorted.get(sorted.size() - 1));
+        }
+        return summary;
+    }
+
+    /**
+     * Connects an agent without starting a process: the agent end of the channel is built in this JVM, over a pair
+     * of pipes. Master sees an ordinary remoting channel, so every call is serialized, and classes are loaded through
+     * the channel.
+     */
+    static final class InJvmLauncher extends ComputerLauncher {
+
+        /**
+         * Whether the agents drop requests. Off while the agents connect.
+         */
+        static volatile boolean faulty;
+
+        @Override
+        public void launch(SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
+            final String name = computer.getName();
+            final FastPipedInputStream agentIn = new FastPipedInputStream();
+            FastPipedOutputStream masterOut = new FastPipedOutputStream(agentIn);
+            FastPipedInputStream masterIn = new FastPipedInputStream();
+            final FastPipedOutputStream agentOut = new FastPipedOutputStream(masterIn);
+
+            //Both ends wait for the other to say hello, so the agent end is built on another thread
+            Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    new ChannelBuilder(name, new SimulatedAgentExecutor(name)).build(agentIn, agentOut);
+                    return null;
+                }
+            });
+            computer.setChannel(masterIn, masterOut, listener, null);
+        }
+    }
+
+    /**
+     * Runs the requests master sends to a simulated agent. Each one is held back for a random, exponentially
+     * distributed, time, and a share of them is never run, like an agent that hangs.
+     */
+    static final class SimulatedAgentExecutor extends ThreadPoolExecutor {
+
+        private final Random random = new Random();
+
+        SimulatedAgentExecutor(String name) {
+            super(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), name + " agent"));
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            final long latency;
+            final boolean drop;
+            synchronized (random) {
+                latency = (long) (-LATENCY_MILLIS * Math.log(1 - random.nextDouble()));
+                drop = InJvmLauncher.faulty && random.nextDouble() < FAILURE_RATE;
+            }
+            super.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(latency);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if(!drop) {
+                        command.run();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.util.XStream2;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks building, rendering, evaluating and persisting a {@link FirstBuildAction} of a given size.
+ *
+ * The entries look like a fleet probe: a few hundred nodes and a handful of java versions.
+ *
+ * @author Praqma
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FirstBuildActionBenchmark {
+
+    private static final String[] VERSIONS = {
+        "1.7.0_80 (Oracle Corporation)", "1.8.0_292 (Oracle Corporation)", "11.0.11 (AdoptOpenJDK)", "17.0.9 (Eclipse Adoptium)"
+    };
+
+    @Param({ "10", "1000", "100000" })
+    public int entries;
+
+    private final XStream2 xstream = new XStream2();
+    private FirstBuildAction action;
+    private String xml;
+
+    @Setup
+    public void setUp() {
+        action = build(entries);
+        xml = xstream.toXML(action);
+    }
+
+    static FirstBuildAction build(int entries) {
+        FirstBuildAction action = new FirstBuildAction();
+        for(int i = 0; i < entries; i++) {
+            action.addInfo("slave-" + (i % 300), VERSIONS[i % VERSIONS.length]);
+        }
+        return action;
+    }
+
+    @Benchmark
+    public FirstBuildAction addInfo() {
+        return build(entries);
+    }
+
+    /**
+     * Renders a fresh action, the first page view after a build.
+     */
+    @Benchmark
+    public String renderFirst() {
+        return build(entries).toString();
+    }
+
+    /**
+     * Renders an action that has been rendered before, every following page view.
+     */
+    @Benchmark
+    public String renderCached() {
+        return action.toString();
+    }
+
+    @Benchmark
+    public boolean hasEvenRandomNumber() {
+        return action.hasEvenRandomNumber();
+    }
+
+    @Benchmark
+    public String toXml() {
+        return xstream.toXML(action);
+    }
+
+    @Benchmark
+    public Object fromXml() {
+        return xstream.fromXML(xml);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import java.util.NavigableSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks finding the most recent build with an action in a synthetic build history, where only some builds
+ * ran the builder.
+ *
+ * The walk is what {@link FirstProjectAction#getLastBuildAction()} used to do, minus loading the builds from disk,
+ * so it is a lower bound of the old cost. {@link FirstBuildIndex#getLastBuildAction()} needs a real project, so it
+ * is measured by the load harness, see FirstLoadHarness, and only the range format the index is saved in is measured
+ * here.
+ *
+ * @author Praqma
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FirstHistoryBenchmark {
+
+    @Param({ "1000", "100000" })
+    public int builds;
+
+    /**
+     * Every n'th build has an action.
+     */
+    @Param({ "1", "100" })
+    public int every;
+
+    private SyntheticBuild last;
+    private NavigableSet<Integer> numbers;
+    private String ranges;
+
+    /**
+     * A build in a singly linked history, like Jenkins' previous build pointers.
+     */
+    static final class SyntheticBuild {
+        final int number;
+        final SyntheticBuild previous;
+        final FirstBuildAction action;
+
+        SyntheticBuild(int number, SyntheticBuild previous, FirstBuildAction action) {
+            this.number = number;
+            this.previous = previous;
+            this.action = action;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        FirstBuildAction action = new FirstBuildAction();
+        action.addInfo("master", "1.8.0_292");
+        SyntheticBuild build = null;
+        StringBuilder builder = new StringBuilder();
+        //The oldest builds have actions, so the walk has to go far back
+        for(int i = 1; i <= builds; i++) {
+            boolean hasAction = i % every == 0 && i < builds / 2;
+            build = new SyntheticBuild(i, build, hasAction ? action : null);
+            if(hasAction) {
+                builder.append(builder.length() > 0 ? "," : "").append(i);
+            }
+        }
+        last = build;
+        numbers = FirstBuildIndex.parseRanges(builder.toString());
+        ranges = FirstBuildIndex.formatRanges(numbers);
+    }
+
+    @Benchmark
+    public FirstBuildAction walk() {
+        for(SyntheticBuild b = last; b != null; b = b.previous) {
+            if(b.action != null) {
+                return b.action;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public String formatRanges() {
+        return FirstBuildIndex.formatRanges(numbers);
+    }
+
+    @Benchmark
+    public NavigableSet<Integer> parseRanges() {
+        return FirstBuildIndex.parseRanges(ranges);
+    }
+}
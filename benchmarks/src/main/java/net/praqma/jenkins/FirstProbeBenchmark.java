@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the parts of {@link FirstRemoteOperation#invoke(File, hudson.remoting.VirtualChannel)} that do not
+ * start a process: parsing a release file and 'java -version' output, and a lookup in the {@link FirstProbeCache}.
+ *
+ * @author Praqma
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FirstProbeBenchmark {
+
+    private static final List<String> VERSION_OUTPUT = Arrays.asList(
+            "openjdk version \"17.0.9\" 2023-10-17",
+            "OpenJDK Runtime Environment Temurin-17.0.9+9 (build 17.0.9+9)",
+            "OpenJDK 64-Bit Server VM Temurin-17.0.9+9 (build 17.0.9+9, mixed mode, sharing)");
+
+    private File home;
+    private File java;
+    private String key;
+
+    @Setup
+    public void setUp() throws IOException {
+        home = File.createTempFile("jdk", "");
+        home.delete();
+        new File(home, "bin").mkdirs();
+        java = new File(home, "bin/java");
+        java.createNewFile();
+        FileWriter writer = new FileWriter(new File(home, "release"));
+        try {
+            writer.write("IMPLEMENTOR=\"Eclipse Adoptium\"\nJAVA_VERSION=\"17.0.9\"\nJAVA_VERSION_DATE=\"2023-10-17\"\n");
+        } finally {
+            writer.close();
+        }
+        key = FirstProbeCache.key("slave", FirstRemoteOperation.ProbeMode.RELEASE_FILE, java);
+        FirstProbeCache.getInstance().put(key, java, FirstJavaVersion.fromReleaseFile(home));
+    }
+
+    @TearDown
+    public void tearDown() {
+        new File(home, "release").delete();
+        java.delete();
+        new File(home, "bin").delete();
+        home.delete();
+    }
+
+    @Benchmark
+    public FirstJavaVersion parseVersionOutput() {
+        return FirstJavaVersion.fromVersionOutput(VERSION_OUTPUT, null);
+    }
+
+    @Benchmark
+    public FirstJavaVersion readReleaseFile() {
+        return FirstJavaVersion.fromReleaseFile(home);
+    }
+
+    @Benchmark
+    public FirstJavaVersion cacheHit() {
+        return FirstProbeCache.getInstance().get(key, java, TimeUnit.HOURS.toMillis(1));
+    }
+
+    /**
+     * The whole operation as run on a slave, after the first call it is answered from the cache.
+     */
+    @Benchmark
+    public FirstJavaVersion invoke() throws IOException, InterruptedException {
+        return new FirstRemoteOperation("slave", TimeUnit.HOURS.toMillis(1), FirstRemoteOperation.ProbeMode.RELEASE_FILE).invoke(null, null);
+    }
+
+    @Benchmark
+    public String[] parseFacts() {
+        return FirstFactsOperation.parse("OS_NAME, OS_ARCH, CPU_COUNT, FREE_DISK, env.PATH");
+    }
+}
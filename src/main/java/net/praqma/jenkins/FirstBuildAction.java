@@ -23,10 +23,33 @@
  */
 package net.praqma.jenkins;
 
-import hudson.model.Action;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import hudson.Util;
+import hudson.model.Run;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.RunAction2;
 
 /**
  *
@@ -37,21 +60,632 @@ import java.util.Random;
  * This data can the be extracted for use in the various views that Jenkins offers.
  * 
  * In our example we will re-use the same action through the entire build pipeline.
+ *
+ * The info is stored in columns rather than as a list of objects. Java versions and node names are mostly the same
+ * over and over again, so they are kept once in a dictionary, and the columns only hold their positions in it.
+ * The action is written to build.xml by the {@link ConverterImpl}, which also reads the old list based format.
+ *
+ * Several threads may add info to the same action, for instance parallel probes or matrix builds. All access to the
+ * columns is guarded by the monitor of the action. An append only holds it for a few array writes, which is nothing
+ * compared to the remoting call that produced the info, so there is no point in anything more elaborate.
+ * Use {@link #getOrCreate(Run)} to add the action to a build, so two threads do not both add one.
+ *
+ * When the build completes, the columns are stored according to {@link FirstConfiguration#getStorage()}: in build.xml,
+ * in a file next to it, or in the {@link FirstProbeLog} of the project. In the last two cases the dictionary and the
+ * facts go to the file next to build.xml as well, and build.xml only holds a header with the counts, so build history
+ * pages, the sidebar and the remote API never read the columns. The columns
+ * are read the first time they are needed, and are only softly referenced, so the garbage collector may drop them
+ * again. The action is a {@link RunAction2}, so it knows which build it belongs to, and where to read from.
+ *
+ * The java versions rarely change from one build to the next, so a side file is usually written as the difference to
+ * the side file of the previous build, see {@link #writeSideFile}.
  * 
  * @author Praqma
  */
-public class FirstBuildAction implements Action {
+public class FirstBuildAction implements RunAction2 {
 
-    public List<FirstBuildInfo> firstBuildInfo;
+    private static final Random RANDOM = new Random();
+    private static final Logger LOGGER = Logger.getLogger(FirstBuildAction.class.getName());
+
+    /**
+     * The file in the build directory holding the columns, when the storage is {@link FirstConfiguration.Storage#SIDE_FILE}.
+     */
+    static final String SIDE_FILE = "first-infos.bin";
+
+    /**
+     * A side file is written in full at least every this many builds, so reading a delta never reads more than this
+     * many side files.
+     */
+    static final int SNAPSHOT_INTERVAL = 10;
+
+    static final int DICTIONARY = -3;
+    static final int FULL = -1;
+    static final int DELTA = -2;
+    static final int COPY = 0;
+    static final int LITERAL = 1;
+
+    /**
+     * The dictionary, the columns and the facts while they are in memory for good, which is while the build runs, and
+     * when they are stored in build.xml. Null when they are stored elsewhere, then {@link #softInfos} may hold them.
+     */
+    private transient Infos infos = new Infos();
+    private transient SoftReference<Infos> softInfos;
+
+    /**
+     * Where the columns are stored, and for {@link FirstConfiguration.Storage#PROBE_LOG} the position of the first
+     * record in the log.
+     */
+    private FirstConfiguration.Storage storage = FirstConfiguration.Storage.BUILD_XML;
+    private long logOffset = -1;
+    /**
+     * For a side file written as a delta, the number of the base build and the number of side files to read.
+     */
+    private int deltaBase = -1;
+    private int deltaDepth;
+    private transient Run<?, ?> owner;
+
+    /**
+     * The rows holding a last known java version, because the node was not probed or did not answer in time. See
+     * {@link FirstProbeGuard}. Kept in build.xml, whatever the storage.
+     */
+    private final BitSet staleRows = new BitSet();
+
+    /**
+     * Aggregates of the columns, updated as info is added, so the {@link FirstVerdictRule}s never have to scan
+     * the columns. They are the header written to build.xml when the columns are stored elsewhere.
+     */
+    private int size;
+    private int evenCount;
+    private int minRandomNumber = Integer.MAX_VALUE;
+    private int maxRandomNumber = Integer.MIN_VALUE;
+    private int distinctVersionCount;
+    private transient BitSet versionsSeen = new BitSet();
+
+    /**
+     * The rendered html of {@link #toString()}. Not persisted, and cleared when info is added. Only softly referenced,
+     * like the columns it is rendered from, so a build that has been shown once does not keep it for good.
+     */
+    private transient SoftReference<String> html;
+
+    /**
+     * Probes dispatched while the build is running, whose answers have not been added yet.
+     */
+    private transient List<FirstPendingProbe> pending;
 
     public FirstBuildAction() {    
-        firstBuildInfo = new ArrayList<FirstBuildInfo>();
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        owner = r;
+    }
+
+    @Override
+    public synchronized void onLoad(Run<?, ?> r) {
+        owner = r;
+    }
+
+    /**
+     * Gets the action of a build, adding a new one if the build does not have one yet. The check and the add are
+     * done while holding the monitor of the build, which is the same lock Jenkins uses when it creates the action list.
+     *
+     * @param build the build
+     * @return the action of the build
+     */
+    public static FirstBuildAction getOrCreate(Run<?, ?> build) {
+        synchronized (build) {
+            FirstBuildAction action = build.getAction(FirstBuildAction.class);
+            if(action == null) {
+                action = new FirstBuildAction();
+                build.addAction(action);
+            }
+            return action;
+        }
     }
     
     public void addInfo(String javaVersion) {
-        firstBuildInfo.add(new FirstBuildInfo(javaVersion));
-    }    
-    
+        addInfo(null, javaVersion);
+    }
+
+    /**
+     * @param node the name of the node the java version was found on, or null if not known
+     * @param javaVersion the java version
+     */
+    public synchronized void addInfo(String node, String javaVersion) {
+        addInfo(node, javaVersion, false);
+    }
+
+    /**
+     * @param node the name of the node the java version was found on, or null if not known
+     * @param javaVersion the java version
+     * @param stale true if the java version was not found now, but is the last one known for the node
+     */
+    public synchronized void addInfo(String node, String javaVersion, boolean stale) {
+        if(stale) {
+            staleRows.set(size);
+        }
+        Infos columns = infos();
+        add(node == null ? -1 : columns.intern(node), columns.intern(javaVersion), 1 + RANDOM.nextInt(10));
+    }
+
+    private synchronized void add(int nodeId, int versionId, int randomNumber) {
+        infos().add(nodeId, versionId, randomNumber);
+        count(versionId, randomNumber);
+        html = null;
+    }
+
+    private void count(int versionId, int randomNumber) {
+        size++;
+        if(randomNumber % 2 == 0) {
+            evenCount++;
+        }
+        minRandomNumber = Math.min(minRandomNumber, randomNumber);
+        maxRandomNumber = Math.max(maxRandomNumber, randomNumber);
+        if(!versionsSeen.get(versionId)) {
+            versionsSeen.set(versionId);
+            distinctVersionCount++;
+        }
+    }
+
+    /**
+     * Adds the facts gathered on a node. The java version of the facts is not added, use {@link #addInfo(String, String)}.
+     *
+     * @param node the name of the node the facts were gathered on
+     * @param facts the facts
+     */
+    public synchronized void addFacts(String node, FirstFacts facts) {
+        Infos columns = infos();
+        int nodeId = columns.intern(node);
+        for(int i = 0; i < facts.size(); i++) {
+            columns.addFact(nodeId, columns.intern(facts.getName(i)), columns.intern(facts.getValue(i)));
+        }
+        html = null;
+    }
+
+    /**
+     * @param node the name of a node
+     * @param name the name of a fact
+     * @return the value of the fact gathered on the node, or null if it was not gathered
+     */
+    public synchronized String getFact(String node, String name) {
+        Infos columns = infos();
+        Integer nodeId = columns.dictionaryIds.get(node);
+        Integer nameId = columns.dictionaryIds.get(name);
+        if(nodeId == null || nameId == null) {
+            return null;
+        }
+        for(int i = 0; i < columns.factSize; i++) {
+            if(columns.factNodeIds[i] == nodeId && columns.factNameIds[i] == nameId) {
+                return columns.dictionary.get(columns.factValueIds[i]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a probe whose answer should be added to this action before the build completes.
+     *
+     * @param probe the dispatched probe
+     */
+    public synchronized void addPending(FirstPendingProbe probe) {
+        if(pending == null) {
+            pending = new ArrayList<FirstPendingProbe>();
+        }
+        pending.add(probe);
+    }
+
+    /**
+     * @return true if there are dispatched probes that have not been collected
+     */
+    public synchronized boolean hasPending() {
+        return pending != null && !pending.isEmpty();
+    }
+
+    /**
+     * Waits for the dispatched probes and adds their answers. The waiting is done without holding the monitor of
+     * the action, so other probes can still add info in the meantime.
+     *
+     * @param logger the build log
+     * @throws InterruptedException if the build is aborted while we wait, the remaining probes are cancelled
+     */
+    public void collectPending(PrintStream logger) throws InterruptedException {
+        List<FirstPendingProbe> probes;
+        synchronized (this) {
+            if(pending == null || pending.isEmpty()) {
+                return;
+            }
+            probes = pending;
+            pending = null;
+        }
+        for(int i = 0; i < probes.size(); i++) {
+            try {
+                probes.get(i).collect(this, logger);
+            } catch (InterruptedException e) {
+                for(int j = i + 1; j < probes.size(); j++) {
+                    probes.get(j).cancel();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Gives up on the dispatched probes without waiting for them, for a build that is not going to use their
+     * answers.
+     *
+     * @param logger the build log
+     */
+    public void cancelPending(PrintStream logger) {
+        List<FirstPendingProbe> probes;
+        synchronized (this) {
+            if(pending == null || pending.isEmpty()) {
+                return;
+            }
+            probes = pending;
+            pending = null;
+        }
+        logger.println("Cancelling " + probes.size() + " unanswered java version probes");
+        for(FirstPendingProbe probe : probes) {
+            probe.cancel();
+        }
+    }
+
+    /**
+     * Stores the columns of a completed build. For anything but {@link FirstConfiguration.Storage#BUILD_XML} the
+     * columns are written outside build.xml, and only kept in memory as long as the heap allows. The build must be
+     * saved afterwards.
+     *
+     * The log of the project is locked while holding the monitor of the action, never the other way around.
+     *
+     * @param storage where to store the columns
+     * @return true if the action changed and the build should be saved
+     * @throws IOException if the columns cannot be written, they then stay in build.xml
+     */
+    public synchronized boolean store(FirstConfiguration.Storage storage) throws IOException {
+        if(this.storage != FirstConfiguration.Storage.BUILD_XML || storage == FirstConfiguration.Storage.BUILD_XML
+                || size == 0 || owner == null) {
+            return false;
+        }
+        File file = new File(owner.getRootDir(), SIDE_FILE);
+        if(storage == FirstConfiguration.Storage.PROBE_LOG) {
+            logOffset = FirstProbeLog.of(owner.getParent()).append(owner.getNumber(), this);
+            if(infos.factSize > 0) {
+                //The log has no room for facts, they go to a side file without columns
+                writeSideFile(file, infos, null, -1, false);
+            }
+        } else {
+            Run<?, ?> previous = owner.getPreviousBuild();
+            FirstBuildAction base = deltaBaseAction(previous);
+            writeSideFile(file, infos, base, base != null ? previous.getNumber() : -1, true);
+        }
+        this.storage = storage;
+        softInfos = new SoftReference<Infos>(infos);
+        infos = null;
+        return true;
+    }
+
+    /**
+     * @return where the columns are stored
+     */
+    public synchronized FirstConfiguration.Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Gets the columns, reading them if they are stored outside build.xml and not in memory. Must be called
+     * holding the monitor.
+     */
+    private Infos infos() {
+        if(infos != null) {
+            return infos;
+        }
+        Infos read = softInfos != null ? softInfos.get() : null;
+        if(read == null) {
+            read = readInfos();
+            softInfos = new SoftReference<Infos>(read);
+        }
+        return read;
+    }
+
+    private Infos readInfos() {
+        final Infos read = new Infos();
+        if(owner == null) {
+            return read;
+        }
+        try {
+            File file = new File(owner.getRootDir(), SIDE_FILE);
+            if(storage == FirstConfiguration.Storage.PROBE_LOG) {
+                //The dictionary first, the facts refer to it
+                if(file.exists()) {
+                    readSideFile(file, read);
+                }
+                FirstProbeLog.of(owner.getParent()).scan(logOffset, size, new FirstProbeLog.Visitor() {
+                    @Override
+                    public void visit(int buildNumber, String node, String javaVersion, int randomNumber, boolean stale) {
+                        //The stale rows are kept in build.xml as well
+                        read.add(node == null ? -1 : read.intern(node), read.intern(javaVersion), randomNumber);
+                    }
+                });
+            } else {
+                readSideFile(file, read);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to read the infos of " + owner, e);
+        }
+        return read;
+    }
+
+    /**
+     * Finds the action to write a delta against: the one of the previous build, if its columns are in a side file
+     * and its chain of deltas is not already {@link #SNAPSHOT_INTERVAL} long.
+     */
+    private static FirstBuildAction deltaBaseAction(Run<?, ?> previous) {
+        FirstBuildAction base = previous != null ? previous.getAction(FirstBuildAction.class) : null;
+        if(base == null) {
+            return null;
+        }
+        synchronized (base) {
+            return base.storage == FirstConfiguration.Storage.SIDE_FILE && base.deltaDepth + 1 < SNAPSHOT_INTERVAL ? base : null;
+        }
+    }
+
+    /**
+     * @return every row of the columns as node and java version, the node is the empty string if not known
+     */
+    private synchronized String[] rowKeys() {
+        Infos columns = infos();
+        String[] keys = new String[columns.size];
+        for(int i = 0; i < columns.size; i++) {
+            keys[i] = columns.rowKey(i);
+        }
+        return keys;
+    }
+
+    /**
+     * Writes the side file, as a delta against the base if there is one and the delta is smaller. Must be called
+     * holding the monitor.
+     *
+     * The side file starts with {@link #DICTIONARY}, the number of strings, the strings, the number of facts, and the
+     * node, name and value of each fact. The columns follow, unless they are in the {@link FirstProbeLog}.
+     * Full columns are {@link #FULL}, the number of rows, and the node, java version and random number of each row.
+     * A delta is {@link #DELTA}, the number of the base build, the number of rows, the random numbers, and then a
+     * list of operations of three ints each: {@link #COPY}, the first row in the base and the number of rows to copy,
+     * or {@link #LITERAL}, the node and the java version of a row that is not in the base. Nodes, java versions and
+     * facts are positions in the dictionary.
+     */
+    private void writeSideFile(File file, Infos rows, FirstBuildAction base, int baseNumber, boolean columns) throws IOException {
+        List<int[]> operations = null;
+        if(base != null) {
+            String[] baseKeys = base.rowKeys();
+            Map<String, Integer> firstRows = new HashMap<String, Integer>();
+            for(int j = baseKeys.length - 1; j >= 0; j--) {
+                firstRows.put(baseKeys[j], j);
+            }
+            operations = new ArrayList<int[]>();
+            int i = 0;
+            while(i < rows.size) {
+                Integer first = firstRows.get(rows.rowKey(i));
+                if(first == null) {
+                    operations.add(new int[] { LITERAL, rows.nodeIds[i], rows.versionIds[i] });
+                    i++;
+                    continue;
+                }
+                int length = 0;
+                while(i < rows.size && first + length < baseKeys.length
+                        && baseKeys[first + length].equals(rows.rowKey(i))) {
+                    i++;
+                    length++;
+                }
+                operations.add(new int[] { COPY, first, length });
+            }
+            if(operations.size() * 3 >= rows.size * 2) {
+                //The builds differ too much for the delta to pay off
+                operations = null;
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(DICTIONARY);
+            out.writeInt(rows.dictionary.size());
+            for(String value : rows.dictionary) {
+                out.writeUTF(value);
+            }
+            out.writeInt(rows.factSize);
+            for(int i = 0; i < rows.factSize; i++) {
+                out.writeInt(rows.factNodeIds[i]);
+                out.writeInt(rows.factNameIds[i]);
+                out.writeInt(rows.factValueIds[i]);
+            }
+            if(!columns) {
+                //Nothing more
+            } else if(operations == null) {
+                out.writeInt(FULL);
+                out.writeInt(rows.size);
+                for(int i = 0; i < rows.size; i++) {
+                    out.writeInt(rows.nodeIds[i]);
+                    out.writeInt(rows.versionIds[i]);
+                    out.writeInt(rows.randomNumbers[i]);
+                }
+            } else {
+                out.writeInt(DELTA);
+                out.writeInt(baseNumber);
+                out.writeInt(rows.size);
+                for(int i = 0; i < rows.size; i++) {
+                    out.writeInt(rows.randomNumbers[i]);
+                }
+                out.writeInt(operations.size());
+                for(int[] operation : operations) {
+                    out.writeInt(operation[0]);
+                    out.writeInt(operation[1]);
+                    out.writeInt(operation[2]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if(operations == null) {
+            deltaBase = -1;
+            deltaDepth = 0;
+        } else {
+            deltaBase = baseNumber;
+            deltaDepth = base.deltaDepth + 1;
+        }
+    }
+
+    private void readSideFile(File file, Infos infos) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if(in.readInt() != DICTIONARY) {
+                throw new IOException("Not a side file: " + file);
+            }
+            int strings = in.readInt();
+            for(int i = 0; i < strings; i++) {
+                infos.intern(in.readUTF());
+            }
+            int facts = in.readInt();
+            for(int i = 0; i < facts; i++) {
+                infos.addFact(in.readInt(), in.readInt(), in.readInt());
+            }
+            if(storage == FirstConfiguration.Storage.PROBE_LOG) {
+                //The columns are in the log
+                return;
+            }
+            int kind = in.readInt();
+            if(kind == FULL) {
+                int rows = in.readInt();
+                for(int i = 0; i < rows; i++) {
+                    infos.add(in.readInt(), in.readInt(), in.readInt());
+                }
+                return;
+            }
+            if(kind != DELTA) {
+                throw new IOException("Unknown columns " + kind + " in " + file);
+            }
+
+            int baseNumber = in.readInt();
+            int[] numbers = new int[in.readInt()];
+            for(int i = 0; i < numbers.length; i++) {
+                numbers[i] = in.readInt();
+            }
+            Run<?, ?> baseBuild = owner.getParent().getBuildByNumber(baseNumber);
+            FirstBuildAction base = baseBuild != null ? baseBuild.getAction(FirstBuildAction.class) : null;
+            if(base == null) {
+                LOGGER.log(Level.WARNING, "The base build #{0} of {1} is gone, copied infos are unknown", new Object[] { baseNumber, owner });
+            }
+            int operations = in.readInt();
+            int row = 0;
+            for(int i = 0; i < operations; i++) {
+                int operation = in.readInt();
+                int first = in.readInt();
+                int second = in.readInt();
+                if(operation == LITERAL) {
+                    infos.add(first, second, numbers[row++]);
+                } else if(base == null) {
+                    for(int j = 0; j < second; j++) {
+                        infos.add(-1, infos.intern("Unknown"), numbers[row++]);
+                    }
+                } else {
+                    //The base may itself be a delta, it is read the same way, at most SNAPSHOT_INTERVAL deep
+                    synchronized (base) {
+                        for(int j = first; j < first + second; j++) {
+                            String node = base.getNode(j);
+                            infos.add(node == null ? -1 : infos.intern(node), infos.intern(base.getJavaVersion(j)), numbers[row++]);
+                        }
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Called before a build is deleted. If the next build is a delta against it, the next build is written as a full
+     * side file, while the deleted build can still be read. Only a build whose own columns are in a side file can be
+     * the base of a delta, for any other build nothing is loaded.
+     *
+     * @param build the build being deleted
+     */
+    public static void onDeleted(Run<?, ?> build) {
+        FirstBuildAction deleted = build.getAction(FirstBuildAction.class);
+        if(deleted == null || deleted.getStorage() != FirstConfiguration.Storage.SIDE_FILE) {
+            return;
+        }
+        Run<?, ?> next = build.getNextBuild();
+        FirstBuildAction action = next != null ? next.getAction(FirstBuildAction.class) : null;
+        if(action == null) {
+            return;
+        }
+        try {
+            boolean rewritten;
+            synchronized (action) {
+                rewritten = action.deltaBase == build.getNumber();
+                if(rewritten) {
+                    action.writeSideFile(new File(next.getRootDir(), SIDE_FILE), action.infos(), null, -1, true);
+                }
+            }
+            if(rewritten) {
+                next.save();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to rewrite the infos of " + next + " without its base build", e);
+        }
+    }
+
+    private synchronized int intern(String value) {
+        return infos().intern(value);
+    }
+
+    /**
+     * Answered from the header, the columns are not read.
+     *
+     * @return the number of infos in this action
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized String getJavaVersion(int index) {
+        Infos columns = infos();
+        return columns.dictionary.get(columns.versionIds[index]);
+    }
+
+    public synchronized String getNode(int index) {
+        Infos columns = infos();
+        int nodeId = columns.nodeIds[index];
+        return nodeId < 0 ? null : columns.dictionary.get(nodeId);
+    }
+
+    public synchronized int getRandomNumber(int index) {
+        return infos().randomNumbers[index];
+    }
+
+    /**
+     * Answered without reading the columns.
+     *
+     * @param index the row
+     * @return true if the java version of the row is the last known one, not one found by this build
+     */
+    public synchronized boolean isStale(int index) {
+        return staleRows.get(index);
+    }
+
+    /**
+     * Creates a list of info objects from the columns. Use the indexed getters when possible, they do not create
+     * any objects.
+     *
+     * @return a copy of the info in this action
+     */
+    public synchronized List<FirstBuildInfo> getFirstBuildInfo() {
+        Infos columns = infos();
+        List<FirstBuildInfo> list = new ArrayList<FirstBuildInfo>(columns.size);
+        for(int i = 0; i < columns.size; i++) {
+            list.add(new FirstBuildInfo(getNode(i), getJavaVersion(i), columns.randomNumbers[i]));
+        }
+        return list;
+    }
     
      /**
      * 
@@ -72,39 +706,389 @@ public class FirstBuildAction implements Action {
         return "firstbuildaction";
     }
 
+    /**
+     * The views render the action with this method. The html is only built once, after that the same string is
+     * returned until more info is added.
+     *
+     * @return the info as html
+     */
     @Override
-    public String toString() {
-        StringBuilder builder = new StringBuilder();
-        for(FirstBuildAction.FirstBuildInfo info : firstBuildInfo) {
-            builder.append(info + "<br/>");
+    public synchronized String toString() {
+        String rendered = html != null ? html.get() : null;
+        if(rendered == null) {
+            Infos columns = infos();
+            StringBuilder builder = new StringBuilder();
+            for(int i = 0; i < columns.size; i++) {
+                String node = getNode(i);
+                builder.append(FirstBuildInfo.format(node != null ? Util.escape(node) : null, Util.escape(getJavaVersion(i)), columns.randomNumbers[i]));
+                if(staleRows.get(i)) {
+                    builder.append(" (stale)");
+                }
+                builder.append("<br/>");
+            }
+            for(int i = 0; i < columns.factSize; i++) {
+                //Facts are whatever the node says, environment variables included, so they are escaped
+                builder.append(String.format("Node: %s - %s: %s", Util.escape(columns.dictionary.get(columns.factNodeIds[i])),
+                        Util.escape(columns.dictionary.get(columns.factNameIds[i])),
+                        Util.escape(columns.dictionary.get(columns.factValueIds[i])))).append("<br/>");
+            }
+            rendered = builder.toString();
+            html = new SoftReference<String>(rendered);
+        }
+        return rendered;
+    }
+
+    /**
+     * The dictionary, the three columns of infos and the facts, growing as infos are added.
+     */
+    private static final class Infos {
+        /**
+         * Java versions, node names and facts, each string only once.
+         */
+        private final List<String> dictionary = new ArrayList<String>();
+        private final Map<String, Integer> dictionaryIds = new HashMap<String, Integer>();
+        private int size;
+        private int[] versionIds = new int[4];
+        /**
+         * Position of the node name in the dictionary, or -1 if the node is not known.
+         */
+        private int[] nodeIds = new int[4];
+        private int[] randomNumbers = new int[4];
+
+        /**
+         * The facts gathered by a {@link FirstFactsOperation}, also as positions in the dictionary.
+         */
+        private int factSize;
+        private int[] factNodeIds = new int[0];
+        private int[] factNameIds = new int[0];
+        private int[] factValueIds = new int[0];
+
+        private void add(int nodeId, int versionId, int randomNumber) {
+            if(size == versionIds.length) {
+                int capacity = size * 2;
+                versionIds = Arrays.copyOf(versionIds, capacity);
+                nodeIds = Arrays.copyOf(nodeIds, capacity);
+                randomNumbers = Arrays.copyOf(randomNumbers, capacity);
+            }
+            versionIds[size] = versionId;
+            nodeIds[size] = nodeId;
+            randomNumbers[size] = randomNumber;
+            size++;
+        }
+
+        private void addFact(int nodeId, int nameId, int valueId) {
+            if(factSize == factNodeIds.length) {
+                int capacity = Math.max(4, factSize * 2);
+                factNodeIds = Arrays.copyOf(factNodeIds, capacity);
+                factNameIds = Arrays.copyOf(factNameIds, capacity);
+                factValueIds = Arrays.copyOf(factValueIds, capacity);
+            }
+            factNodeIds[factSize] = nodeId;
+            factNameIds[factSize] = nameId;
+            factValueIds[factSize] = valueId;
+            factSize++;
+        }
+
+        private int intern(String value) {
+            Integer id = dictionaryIds.get(value);
+            if(id == null) {
+                id = dictionary.size();
+                dictionary.add(value);
+                dictionaryIds.put(value, id);
+            }
+            return id;
+        }
+
+        /**
+         * @return the node and the java version of a row, the node is the empty string if not known
+         */
+        private String rowKey(int row) {
+            return (nodeIds[row] < 0 ? "" : dictionary.get(nodeIds[row])) + '\u0000' + dictionary.get(versionIds[row]);
         }
-        return builder.toString();
     }
     
     /**
-    * Small data class used to store data we collect from our slaves.
+    * Small data class used to present the data we collect from our slaves. It is no longer stored in the action,
+    * but build.xml files written by older versions of the plugin contain a list of these.
     */
     public static class FirstBuildInfo {
+        public String node;
         public String javaVersion;
         public int randomNumber;
         
         public FirstBuildInfo(String javaVersion) {
+            this(null, javaVersion);
+        }
+
+        public FirstBuildInfo(String node, String javaVersion) {
+            this(node, javaVersion, 1 + RANDOM.nextInt(10));
+        }
+
+        public FirstBuildInfo(String node, String javaVersion, int randomNumber) {
+            this.node = node;
             this.javaVersion = javaVersion;
-            this.randomNumber =  1 + new Random().nextInt(10);
+            this.randomNumber = randomNumber;
+        }
+
+        static String format(String node, String javaVersion, int randomNumber) {
+            if(node != null) {
+                return String.format ( "Node: %s - Java version: %s - RandomNumber: %s",node,javaVersion,randomNumber);
+            }
+            return String.format ( "Java version: %s - RandomNumber: %s",javaVersion,randomNumber);
         }
 
         @Override
         public String toString() {
-            return String.format ( "Java version: %s - RandomNumber: %s",javaVersion,randomNumber);
+            return format(node, javaVersion, randomNumber);
         }        
     }
     
-    public boolean hasEvenRandomNumber() {
-        for(FirstBuildAction.FirstBuildInfo info : firstBuildInfo) {
-            if(info.randomNumber % 2 == 0) {
-                return true;
+    public synchronized boolean hasEvenRandomNumber() {
+        return evenCount > 0;
+    }
+
+    public synchronized int getEvenCount() {
+        return evenCount;
+    }
+
+    public synchronized int getOddCount() {
+        return size - evenCount;
+    }
+
+    /**
+     * @return the smallest random number, or 0 if there is no info
+     */
+    public synchronized int getMinRandomNumber() {
+        return size > 0 ? minRandomNumber : 0;
+    }
+
+    /**
+     * @return the largest random number, or 0 if there is no info
+     */
+    public synchronized int getMaxRandomNumber() {
+        return size > 0 ? maxRandomNumber : 0;
+    }
+
+    /**
+     * @return the number of different java versions found
+     */
+    public synchronized int getDistinctVersionCount() {
+        return distinctVersionCount;
+    }
+
+    /**
+     * Writes the action to build.xml as a dictionary and three columns of numbers, like:
+     *
+     * <pre>
+     * &lt;dictionary&gt;&lt;s&gt;master&lt;/s&gt;&lt;s&gt;1.8.0_292 (Oracle Corporation)&lt;/s&gt;&lt;/dictionary&gt;
+     * &lt;nodes&gt;0 0&lt;/nodes&gt;
+     * &lt;versions&gt;1 1&lt;/versions&gt;
+     * &lt;numbers&gt;3 8&lt;/numbers&gt;
+     * </pre>
+     *
+     * Facts, if any, are written the same way, as the columns 'factNodes', 'factNames' and 'factValues'.
+     * The rows with a stale java version, if any, are listed in the column 'stale'.
+     *
+     * When the columns are stored elsewhere, the dictionary and the facts are stored with them, see
+     * {@link #writeSideFile}, and build.xml only holds the header:
+     *
+     * <pre>
+     * &lt;storage&gt;PROBE_LOG&lt;/storage&gt;
+     * &lt;logOffset&gt;1200&lt;/logOffset&gt;
+     * &lt;header&gt;2 1 3 8 1&lt;/header&gt;
+     * </pre>
+     *
+     * The header is the size, the even count, the smallest and largest random number and the distinct version count.
+     * A side file written as a delta adds '&lt;delta&gt;41 3&lt;/delta&gt;', the base build and the depth.
+     *
+     * XStream uses this converter because Jenkins looks for a nested class named ConverterImpl.
+     *
+     * Build records from older versions hold a 'firstBuildInfo' list, which is read into the columns. The build is
+     * written in the new format the next time it is saved.
+     */
+    public static class ConverterImpl implements Converter {
+
+        public ConverterImpl() {
+        }
+
+        @Override
+        public boolean canConvert(Class type) {
+            return type == FirstBuildAction.class;
+        }
+
+        @Override
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            FirstBuildAction action = (FirstBuildAction) source;
+            //The build may be saved while probes are still adding info
+            synchronized (action) {
+                if(action.storage == FirstConfiguration.Storage.BUILD_XML) {
+                    Infos infos = action.infos;
+                    writer.startNode("dictionary");
+                    for(String value : infos.dictionary) {
+                        writer.startNode("s");
+                        writer.setValue(value);
+                        writer.endNode();
+                    }
+                    writer.endNode();
+                    writeColumn(writer, "nodes", infos.nodeIds, infos.size);
+                    writeColumn(writer, "versions", infos.versionIds, infos.size);
+                    writeColumn(writer, "numbers", infos.randomNumbers, infos.size);
+                } else {
+                    writeValue(writer, "storage", action.storage.name());
+                    if(action.storage == FirstConfiguration.Storage.PROBE_LOG) {
+                        writeValue(writer, "logOffset", String.valueOf(action.logOffset));
+                    } else if(action.deltaBase >= 0) {
+                        writeColumn(writer, "delta", new int[] { action.deltaBase, action.deltaDepth }, 2);
+                    }
+                    writeColumn(writer, "header", new int[] { action.size, action.evenCount, action.minRandomNumber,
+                        action.maxRandomNumber, action.distinctVersionCount }, 5);
+                }
+                if(!action.staleRows.isEmpty()) {
+                    int[] rows = new int[action.staleRows.cardinality()];
+                    for(int row = action.staleRows.nextSetBit(0), i = 0; row >= 0; row = action.staleRows.nextSetBit(row + 1), i++) {
+                        rows[i] = row;
+                    }
+                    writeColumn(writer, "stale", rows, rows.length);
+                }
+                if(action.storage == FirstConfiguration.Storage.BUILD_XML && action.infos.factSize > 0) {
+                    Infos infos = action.infos;
+                    writeColumn(writer, "factNodes", infos.factNodeIds, infos.factSize);
+                    writeColumn(writer, "factNames", infos.factNameIds, infos.factSize);
+                    writeColumn(writer, "factValues", infos.factValueIds, infos.factSize);
+                }
+            }
+        }
+
+        @Override
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            FirstBuildAction action = new FirstBuildAction();
+            int[] nodes = null;
+            int[] versions = null;
+            int[] numbers = null;
+            int[] header = null;
+            int[] factNodes = null;
+            int[] factNames = null;
+            int[] factValues = null;
+            while(reader.hasMoreChildren()) {
+                reader.moveDown();
+                String name = reader.getNodeName();
+                if(name.equals("dictionary")) {
+                    while(reader.hasMoreChildren()) {
+                        reader.moveDown();
+                        action.intern(reader.getValue());
+                        reader.moveUp();
+                    }
+                } else if(name.equals("nodes")) {
+                    nodes = readColumn(reader.getValue());
+                } else if(name.equals("versions")) {
+                    versions = readColumn(reader.getValue());
+                } else if(name.equals("numbers")) {
+                    numbers = readColumn(reader.getValue());
+                } else if(name.equals("storage")) {
+                    action.storage = FirstConfiguration.Storage.valueOf(reader.getValue().trim());
+                } else if(name.equals("logOffset")) {
+                    action.logOffset = Long.parseLong(reader.getValue().trim());
+                    action.storage = FirstConfiguration.Storage.PROBE_LOG;
+                } else if(name.equals("delta")) {
+                    int[] delta = readColumn(reader.getValue());
+                    if(delta.length == 2) {
+                        action.deltaBase = delta[0];
+                        action.deltaDepth = delta[1];
+                    }
+                } else if(name.equals("stale")) {
+                    for(int row : readColumn(reader.getValue())) {
+                        action.staleRows.set(row);
+                    }
+                } else if(name.equals("header")) {
+                    header = readColumn(reader.getValue());
+                } else if(name.equals("factNodes")) {
+                    factNodes = readColumn(reader.getValue());
+                } else if(name.equals("factNames")) {
+                    factNames = readColumn(reader.getValue());
+                } else if(name.equals("factValues")) {
+                    factValues = readColumn(reader.getValue());
+                } else if(name.equals("firstBuildInfo")) {
+                    readLegacy(reader, action);
+                }
+                reader.moveUp();
+            }
+
+            if(factNodes != null && factNames != null && factValues != null) {
+                for(int i = 0; i < factNodes.length && i < factNames.length && i < factValues.length; i++) {
+                    action.infos.addFact(factNodes[i], factNames[i], factValues[i]);
+                }
+            }
+            if(action.storage != FirstConfiguration.Storage.BUILD_XML) {
+                action.infos = null;
+                if(header != null && header.length >= 5) {
+                    action.size = header[0];
+                    action.evenCount = header[1];
+                    action.minRandomNumber = header[2];
+                    action.maxRandomNumber = header[3];
+                    action.distinctVersionCount = header[4];
+                }
+            } else if(versions != null && numbers != null) {
+                for(int i = 0; i < versions.length && i < numbers.length; i++) {
+                    action.add(nodes != null && i < nodes.length ? nodes[i] : -1, versions[i], numbers[i]);
+                }
+            }
+            return action;
+        }
+
+        /**
+         * Reads the list written by older versions, where every element has a 'javaVersion' and a 'randomNumber'.
+         */
+        private static void readLegacy(HierarchicalStreamReader reader, FirstBuildAction action) {
+            while(reader.hasMoreChildren()) {
+                reader.moveDown();
+                String node = null;
+                String javaVersion = null;
+                int randomNumber = 0;
+                while(reader.hasMoreChildren()) {
+                    reader.moveDown();
+                    String field = reader.getNodeName();
+                    if(field.equals("node")) {
+                        node = reader.getValue();
+                    } else if(field.equals("javaVersion")) {
+                        javaVersion = reader.getValue();
+                    } else if(field.equals("randomNumber")) {
+                        randomNumber = Integer.parseInt(reader.getValue().trim());
+                    }
+                    reader.moveUp();
+                }
+                action.add(node == null ? -1 : action.intern(node), action.intern(javaVersion == null ? "Unknown" : javaVersion), randomNumber);
+                reader.moveUp();
+            }
+        }
+
+        private static void writeColumn(HierarchicalStreamWriter writer, String name, int[] column, int size) {
+            StringBuilder builder = new StringBuilder(size * 3);
+            for(int i = 0; i < size; i++) {
+                if(i > 0) {
+                    builder.append(' ');
+                }
+                builder.append(column[i]);
+            }
+            writeValue(writer, name, builder.toString());
+        }
+
+        private static void writeValue(HierarchicalStreamWriter writer, String name, String value) {
+            writer.startNode(name);
+            writer.setValue(value);
+            writer.endNode();
+        }
+
+        private static int[] readColumn(String value) {
+            String trimmed = value.trim();
+            if(trimmed.length() == 0) {
+                return new int[0];
+            }
+            String[] parts = trimmed.split(" ");
+            int[] column = new int[parts.length];
+            for(int i = 0; i < parts.length; i++) {
+                column[i] = Integer.parseInt(parts[i]);
             }
+            return column;
         }
-        return false;
     }
 }
@@ -0,0 +1,431 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers which builds of a project have a {@link FirstBuildAction}.
+ *
+ * Without the index, finding the most recent action means walking backwards through the builds, and Jenkins may
+ * have to load each of them from disk. The index is updated when a build completes or is deleted, and is saved
+ * next to the project's config.xml, so the lookup stays cheap after a restart too.
+ *
+ * The build numbers are stored as ranges, like "1-20,25,30-41", because the builds with an action are usually
+ * consecutive. Builds older than {@link #unscannedBelow} were never examined, which is the case for builds made
+ * before the index existed. They are only scanned if every newer build with an action has been deleted.
+ *
+ * @author Praqma
+ */
+public final class FirstBuildIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(FirstBuildIndex.class.getName());
+
+    static final String FILE_NAME = "first-build-index.xml";
+
+    /**
+     * The loaded indexes. Keyed on the project object, so a renamed project keeps its index, since the file is
+     * always found through {@link AbstractProject#getRootDir()}. An index points back to its project, so the entries
+     * are removed by {@link ItemListenerImpl} when a project is deleted, or when Jenkins reloads every project from
+     * disk. The index of a project object that has been replaced by another with the same name is removed as well,
+     * when the new one is first looked up.
+     */
+    private static final Map<AbstractProject<?, ?>, FirstBuildIndex> INDEXES = new HashMap<AbstractProject<?, ?>, FirstBuildIndex>();
+
+    private String ranges = "";
+    private int unscannedBelow;
+    private FirstTrend trend = new FirstTrend();
+
+    private transient NavigableSet<Integer> builds = new TreeSet<Integer>();
+    private transient AbstractProject<?, ?> project;
+    private transient FirstBuildAction lastAction;
+    private transient String summary;
+
+    private FirstBuildIndex() {
+    }
+
+    /**
+     * Gets the index of a project, loading it from disk, or creating it from the build history, the first time.
+     *
+     * @param project the project
+     * @return the index
+     */
+    public static FirstBuildIndex of(AbstractProject<?, ?> project) {
+        synchronized (INDEXES) {
+            FirstBuildIndex index = INDEXES.get(project);
+            if(index == null) {
+                removeReplaced(project);
+                index = load(project);
+                if(index == null) {
+                    index = new FirstBuildIndex();
+                    index.project = project;
+                    index.unscannedBelow = Integer.MAX_VALUE;
+                }
+                INDEXES.put(project, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Gets the index of a project only if it has one already. Used for projects that may not use this plugin at all.
+     *
+     * @param project the project
+     * @return the index or null
+     */
+    public static FirstBuildIndex peek(AbstractProject<?, ?> project) {
+        synchronized (INDEXES) {
+            FirstBuildIndex index = INDEXES.get(project);
+            if(index == null && getFile(project).exists()) {
+                index = of(project);
+            }
+            return index;
+        }
+    }
+
+    private static void removeReplaced(AbstractProject<?, ?> project) {
+        Iterator<AbstractProject<?, ?>> projects = INDEXES.keySet().iterator();
+        while(projects.hasNext()) {
+            if(projects.next().getFullName().equals(project.getFullName())) {
+                projects.remove();
+            }
+        }
+    }
+
+    private static XmlFile getFile(AbstractProject<?, ?> project) {
+        return new XmlFile(new File(project.getRootDir(), FILE_NAME));
+    }
+
+    private static FirstBuildIndex load(AbstractProject<?, ?> project) {
+        XmlFile file = getFile(project);
+        if(!file.exists()) {
+            return null;
+        }
+        try {
+            FirstBuildIndex index = (FirstBuildIndex) file.read();
+            index.project = project;
+            return index;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to read " + file + ", the index will be rebuilt", e);
+            return null;
+        } catch (ClassCastException e) {
+            LOGGER.log(Level.WARNING, "Unexpected content in " + file + ", the index will be rebuilt", e);
+            return null;
+        }
+    }
+
+    /**
+     * Called by XStream after the fields have been read from disk.
+     */
+    private Object readResolve() {
+        builds = parseRanges(ranges);
+        return this;
+    }
+
+    private synchronized void save() {
+        ranges = formatRanges(builds);
+        trend.prepareSave();
+        try {
+            getFile(project).write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save the index of " + project.getFullName(), e);
+        }
+    }
+
+    /**
+     * @return the action of the most recent completed build that has one, or null if no build has one
+     */
+    public synchronized FirstBuildAction getLastBuildAction() {
+        if(lastAction != null) {
+            return lastAction;
+        }
+
+        while(!builds.isEmpty()) {
+            Integer number = builds.last();
+            AbstractBuild<?, ?> build = project.getBuildByNumber(number);
+            FirstBuildAction action = build != null ? build.getAction(FirstBuildAction.class) : null;
+            if(action != null) {
+                lastAction = action;
+                return action;
+            }
+            //Deleted behind our back, for instance by removing the build directory
+            builds.remove(number);
+            save();
+        }
+
+        if(unscannedBelow > 0) {
+            scan();
+        }
+        return lastAction;
+    }
+
+    /**
+     * The summary shown on the job page. It is kept until a build completes or is deleted, so refreshing the job
+     * page does not look anything up or render anything.
+     *
+     * @return the html of the most recent action, or the empty string if there is none
+     */
+    public synchronized String getSummary() {
+        if(summary == null) {
+            FirstBuildAction action = getLastBuildAction();
+            summary = action != null ? action.toString() : "";
+        }
+        return summary;
+    }
+
+    /**
+     * @return the rolling statistics of the last builds
+     */
+    public FirstTrend getTrend() {
+        return trend;
+    }
+
+    /**
+     * @param number a build number
+     * @return the lowest indexed build number at or above the given number, or null if there is none
+     */
+    public synchronized Integer ceiling(int number) {
+        return builds.ceiling(number);
+    }
+
+    /**
+     * @return the build number below which builds have not been examined, so they may have an action without being
+     * in the index. Zero if every build has been examined.
+     */
+    public synchronized int getUnscannedBelow() {
+        return unscannedBelow;
+    }
+
+    /**
+     * @return the numbers of the builds that have an action, oldest first. Do not modify.
+     */
+    public synchronized NavigableSet<Integer> getBuildNumbers() {
+        return new TreeSet<Integer>(builds);
+    }
+
+    /**
+     * Walks backwards from the newest build we have not examined yet, until we find one with an action.
+     */
+    private void scan() {
+        AbstractBuild<?, ?> b = unscannedBelow == Integer.MAX_VALUE
+                ? project.getLastCompletedBuild()
+                : project.getNearestOldBuild(unscannedBelow - 1);
+        for( ; b != null ; b = b.getPreviousBuild() ) {
+            if(b.isBuilding()) {
+                continue;
+            }
+            FirstBuildAction action = b.getAction( FirstBuildAction.class );
+            if( action != null ) {
+                builds.add(b.getNumber());
+                lastAction = action;
+                unscannedBelow = b.getNumber();
+                save();
+                return;
+            }
+        }
+        unscannedBelow = 0;
+        save();
+    }
+
+    synchronized void onCompleted(AbstractBuild<?, ?> build) {
+        FirstBuildAction action = build.getAction(FirstBuildAction.class);
+        if(action == null) {
+            return;
+        }
+        //An index created by this very build has not looked at anything older yet
+        if(unscannedBelow == Integer.MAX_VALUE) {
+            unscannedBelow = build.getNumber();
+        }
+        builds.add(build.getNumber());
+        trend.add(build.getNumber(), action, build.getResult());
+        if(builds.last() == build.getNumber()) {
+            lastAction = action;
+            summary = null;
+        }
+        save();
+    }
+
+    synchronized void onDeleted(AbstractBuild<?, ?> build) {
+        if(builds.remove(build.getNumber())) {
+            lastAction = null;
+            summary = null;
+            save();
+        }
+    }
+
+    static NavigableSet<Integer> parseRanges(String ranges) {
+        NavigableSet<Integer> numbers = new TreeSet<Integer>();
+        if(ranges == null || ranges.length() == 0) {
+            return numbers;
+        }
+        for(String range : ranges.split(",")) {
+            int dash = range.indexOf('-');
+            if(dash < 0) {
+                numbers.add(Integer.parseInt(range));
+            } else {
+                int to = Integer.parseInt(range.substring(dash + 1));
+                for(int i = Integer.parseInt(range.substring(0, dash)); i <= to; i++) {
+                    numbers.add(i);
+                }
+            }
+        }
+        return numbers;
+    }
+
+    static String formatRanges(NavigableSet<Integer> numbers) {
+        StringBuilder builder = new StringBuilder();
+        Integer from = null;
+        Integer previous = null;
+        for(Integer number : numbers) {
+            if(previous != null && number == previous + 1) {
+                previous = number;
+                continue;
+            }
+            appendRange(builder, from, previous);
+            from = number;
+            previous = number;
+        }
+        appendRange(builder, from, previous);
+        return builder.toString();
+    }
+
+    private static void appendRange(StringBuilder builder, Integer from, Integer to) {
+        if(from == null) {
+            return;
+        }
+        if(builder.length() > 0) {
+            builder.append(',');
+        }
+        builder.append(from);
+        if(!from.equals(to)) {
+            builder.append('-').append(to);
+        }
+    }
+
+    /**
+     * Keeps the indexes up to date. Only projects that already have an index, or builds that have an action, are
+     * touched, so projects that do not use the plugin never get an index file.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<AbstractBuild> {
+
+        public RunListenerImpl() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            FirstBuildAction action = build.getAction(FirstBuildAction.class);
+            if(action != null) {
+                Result result = build.getResult();
+                if(result != null && result.isWorseOrEqualTo(Result.FAILURE)) {
+                    //Aborted, or failed before the recorder collected them, so nobody waits for the answers
+                    action.cancelPending(listener.getLogger());
+                } else {
+                    //A job without the recorder still gets the answers of the probes sent ahead of time
+                    try {
+                        action.collectPending(listener.getLogger());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                of(build.getProject()).onCompleted(build);
+                FirstInventory.get().record(build.getProject().getFullName(), action);
+                try {
+                    if(action.store(FirstConfiguration.get().getStorage())) {
+                        //build.xml now holds the header instead of the infos
+                        build.save();
+                    }
+                } catch (IOException e) {
+                    //The infos stay in build.xml
+                    LOGGER.log(Level.WARNING, "Unable to store the infos of " + build, e);
+                }
+            }
+        }
+
+        @Override
+        public void onDeleted(AbstractBuild build) {
+            //The build is still on disk, a later build stored as a delta against it can still be read
+            FirstBuildAction.onDeleted(build);
+            FirstBuildIndex index = peek(build.getProject());
+            if(index != null) {
+                index.onDeleted(build);
+            }
+        }
+    }
+
+    /**
+     * Lets go of the indexes, and the probe logs, of projects Jenkins no longer uses.
+     */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+
+        /**
+         * Also called for a folder, whose projects get no event of their own.
+         */
+        @Override
+        public void onDeleted(Item item) {
+            String prefix = item.getFullName() + "/";
+            synchronized (INDEXES) {
+                Iterator<AbstractProject<?, ?>> projects = INDEXES.keySet().iterator();
+                while(projects.hasNext()) {
+                    AbstractProject<?, ?> project = projects.next();
+                    if(project == item || project.getFullName().startsWith(prefix)) {
+                        projects.remove();
+                    }
+                }
+            }
+            FirstProbeLog.onDeleted(item);
+        }
+
+        /**
+         * Called after startup and after "Reload Configuration from Disk". A reload replaces every project object,
+         * so the indexes of the old ones are dropped, and loaded again from disk for the new ones.
+         */
+        @Override
+        public void onLoaded() {
+            synchronized (INDEXES) {
+                INDEXES.clear();
+            }
+            FirstProbeLog.onLoaded();
+        }
+    }
+}
@@ -24,14 +24,25 @@
 package net.praqma.jenkins;
 
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Node;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.ListBoxModel;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * The Builder for our project. We extend from Builder which implements BuildStep,
@@ -42,12 +53,31 @@ import org.kohsuke.stapler.DataBoundConstructor;
  * this data available for the view we wish to present it in.
  * 
  * During execution we re-use already added actions, and add the discovered data to the already existing build action.
+ *
+ * Instead of the workspace, the builder can probe all online nodes at once, see {@link FirstFleetProbe}.
+ *
+ * In asynchronous mode the probe is sent in the prebuild method, so the node works on it while the build steps run.
+ * The answer is collected by the {@link FirstRecorder}, or when the build completes, see {@link FirstPendingProbe}.
+ *
+ * If the node was probed when it came online, see {@link FirstPrewarm}, the probe of the build is answered from the
+ * agent side {@link FirstProbeCache}, which checks that the java executable has not changed since.
+ *
+ * A probe never takes longer than the probe timeout. A node that does not answer in time, or whose breaker is open,
+ * gets its last known java version, marked stale, see {@link FirstProbeGuard}.
  * 
  * @author Praqma
  */
 public class FirstBuilder extends Builder {
     
     public final boolean runOnSlaves;
+
+    private FirstRemoteOperation.ProbeMode probeMode;
+    private boolean probeFleet;
+    private String fleetLabel;
+    private int fleetTimeout;
+    private int fleetThreads;
+    private String facts;
+    private boolean async;
     
     /**
      * Required static constructor. This is used to create 'One Project Builder' BuildStep in the list-box item on your jobs
@@ -77,7 +107,20 @@ public class FirstBuilder extends Builder {
         @Override
         public String getDisplayName() {
             return "First Builder";
-        }        
+        }
+
+        /**
+         * Fills the drop down list for the field 'probeMode'. Jenkins finds this method by its name.
+         *
+         * @return the items of the list
+         */
+        public ListBoxModel doFillProbeModeItems() {
+            ListBoxModel items = new ListBoxModel();
+            for(FirstRemoteOperation.ProbeMode mode : FirstRemoteOperation.ProbeMode.values()) {
+                items.add(mode.getDisplayName(), mode.name());
+            }
+            return items;
+        }
     }
     
     @DataBoundConstructor
@@ -85,6 +128,135 @@ public class FirstBuilder extends Builder {
         this.runOnSlaves = runOnSlaves;
     }
 
+    /**
+     * Optional settings are bound with setters, so the constructor stays the same as new options are added.
+     * Jobs saved before the option existed will have null here, so the getter supplies the default.
+     *
+     * @return how the java version is found
+     */
+    public FirstRemoteOperation.ProbeMode getProbeMode() {
+        return probeMode != null ? probeMode : FirstRemoteOperation.ProbeMode.RELEASE_FILE;
+    }
+
+    @DataBoundSetter
+    public void setProbeMode(FirstRemoteOperation.ProbeMode probeMode) {
+        this.probeMode = probeMode;
+    }
+
+    /**
+     * @return true if every online node, matching the {@link #getFleetLabel()}, is probed instead of just the workspace
+     */
+    public boolean isProbeFleet() {
+        return probeFleet;
+    }
+
+    @DataBoundSetter
+    public void setProbeFleet(boolean probeFleet) {
+        this.probeFleet = probeFleet;
+    }
+
+    /**
+     * @return the label expression selecting the nodes to probe, empty for all nodes
+     */
+    public String getFleetLabel() {
+        return fleetLabel;
+    }
+
+    @DataBoundSetter
+    public void setFleetLabel(String fleetLabel) {
+        this.fleetLabel = fleetLabel;
+    }
+
+    /**
+     * @return the number of seconds to wait for a single node
+     */
+    public int getFleetTimeout() {
+        return fleetTimeout > 0 ? fleetTimeout : 60;
+    }
+
+    @DataBoundSetter
+    public void setFleetTimeout(int fleetTimeout) {
+        this.fleetTimeout = fleetTimeout;
+    }
+
+    /**
+     * @return the maximum number of nodes probed at the same time
+     */
+    public int getFleetThreads() {
+        return fleetThreads > 0 ? fleetThreads : 16;
+    }
+
+    @DataBoundSetter
+    public void setFleetThreads(int fleetThreads) {
+        this.fleetThreads = fleetThreads;
+    }
+
+    /**
+     * @return the facts to gather together with the java version, see {@link FirstFactsOperation}
+     */
+    public String getFacts() {
+        return facts;
+    }
+
+    @DataBoundSetter
+    public void setFacts(String facts) {
+        this.facts = facts;
+    }
+
+    /**
+     * @return true if the probe is sent when the build starts, and collected after the build steps
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    @DataBoundSetter
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * Runs before any build step is performed. In asynchronous mode this is where we send the probe, without waiting
+     * for the answer. A node that {@link FirstProbeGuard} does not allow to be probed is not sent anything, it gets
+     * its last known java version, marked as stale.
+     *
+     * @param build the current build
+     * @param listener the build listener
+     * @return true, we never stop the build here. If the probe could not be sent, perform will probe as usual.
+     */
+    @Override
+    public boolean prebuild(AbstractBuild<?, ?> build, BuildListener listener) {
+        if(!async || probeFleet) {
+            return true;
+        }
+
+        String node = runOnSlaves ? build.getBuiltOnStr() : "";
+        //Act on the workspace, or on the root of master, both can be done asynchronously
+        FilePath target = runOnSlaves ? build.getWorkspace() : Jenkins.getInstance().getRootPath();
+        if(target == null) {
+            return true;
+        }
+        if(!FirstProbeGuard.get().allow(node)) {
+            //Still pending, so perform does not ask the guard a second time, the fallback is added when collected
+            FirstBuildAction.getOrCreate(build).addPending(FirstPendingProbe.refused(node));
+            return true;
+        }
+        FirstRemoteOperation javaProbe = new FirstRemoteOperation(node, FirstConfiguration.get().getProbeCacheTtlMillis(), getProbeMode());
+        try {
+            Future<FirstFacts> future = target.actAsync(new FirstFactsOperation(javaProbe, FirstFactsOperation.parse(facts)));
+            FirstBuildAction.getOrCreate(build).addPending(new FirstPendingProbe(node, future, getFleetTimeout() * 1000L));
+            listener.getLogger().println("First Builder: probe sent, the answer is collected after the build steps");
+        } catch (IOException e) {
+            //Perform probes as usual, it must be allowed to try again
+            FirstProbeGuard.get().release(node);
+            listener.getLogger().println("First Builder: unable to send the probe ahead of time: " + e);
+        } catch (InterruptedException e) {
+            FirstProbeGuard.get().release(node);
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
     /**
      * Override this method to get your operation done in the build step. When invoked, it is up to you, as a plugin developer
      * to add your actions, and/or perform the operations required by your plugin in this build step. Equally, it is up
@@ -104,36 +276,117 @@ public class FirstBuilder extends Builder {
      */
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        try {
+            return performProbe(build, listener);
+        } finally {
+            FirstMetrics.get().recordBuilder(build.getBuiltOnStr(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Probes the workspace, or master, but never waits longer than the probe timeout.
+     *
+     * @return the answer, or null if the node was not probed or did not answer in time
+     */
+    private FirstFacts probe(AbstractBuild<?, ?> build, String node, long cacheTtlMillis, String[] factNames, PrintStream logger) throws InterruptedException {
+        FirstProbeGuard guard = FirstProbeGuard.get();
+        String name = node.length() == 0 ? "master" : node;
+        if(!guard.allow(node)) {
+            logger.println("Not probing " + name + ", its probes failed or were slow too often lately");
+            return null;
+        }
+
+        //Value [runOnSlaves] from build step configuration. Else, force this to be performed on master, regardless.
+        FilePath target = runOnSlaves ? build.getWorkspace() : Jenkins.getInstance().getRootPath();
+        FirstRemoteOperation javaProbe = new FirstRemoteOperation(node, cacheTtlMillis, getProbeMode());
+        long deadlineMillis = getFleetTimeout() * 1000L;
+        Future<FirstFacts> future = null;
+        FirstFacts found = null;
+        boolean interrupted = false;
+        long start = System.nanoTime();
+        try {
+            //Sent without blocking, so we decide how long to wait. All facts are gathered in one call.
+            future = target.actAsync(new FirstFactsOperation(javaProbe, factNames));
+            found = future.get(deadlineMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            logger.println("No java version from " + name + " within " + deadlineMillis + " ms");
+        } catch (ExecutionException e) {
+            logger.println("Unable to find the java version on " + name + ": " + e.getCause());
+        } catch (IOException e) {
+            logger.println("Unable to probe " + name + ": " + e);
+        } catch (InterruptedException e) {
+            //The build was aborted, which says nothing about the node
+            interrupted = true;
+            if(future != null) {
+                future.cancel(true);
+            }
+            throw e;
+        } finally {
+            if(interrupted) {
+                guard.release(node);
+            } else {
+                long nanos = System.nanoTime() - start;
+                FirstJavaVersion version = found != null ? found.getJavaVersion() : null;
+                FirstMetrics.get().recordProbe(node, nanos, FirstMetrics.outcomeOf(version));
+                guard.record(node, version, nanos, deadlineMillis);
+            }
+        }
+        return found;
+    }
+
+    private boolean performProbe(AbstractBuild<?, ?> build, BuildListener listener) throws InterruptedException, IOException {
         //Print to the console
         listener.getLogger().println("My First Builder");
         
-        String javaVersion = null;
-        
-        //Value [runOnSlaves] from build step configuration.
-        if ( runOnSlaves) {
-            //Tell jenkins to act upon the current workspace (Can be remote, or local)
-            javaVersion = build.getWorkspace().act(new FirstRemoteOperation());
-        } else {
-            //Else, force this to be performed on master, regardless.
-            javaVersion = new FirstRemoteOperation().invoke(null, null);
-        }
+        long cacheTtlMillis = FirstConfiguration.get().getProbeCacheTtlMillis();
+        String[] factNames = FirstFactsOperation.parse(facts);
 
-        listener.getLogger().println( "Found this java version: " + javaVersion);
-        
-        //Extract our action from the build, null if no action found.
-        FirstBuildAction action = build.getAction(FirstBuildAction.class);
-        
         /**
          * This is where we add our build action to the build.
-         * We only do this if we haven't previously added one.
+         * We only do this if we haven't previously added one. Other build steps may be doing the same thing
+         * at the same time, so the check and the add must happen as one.
          */
-        if(action != null) {
-            action.addInfo(javaVersion);
-        } else {
-            //No action yet...let's add one
-            action = new FirstBuildAction();
-            action.addInfo(javaVersion);
-            build.addAction(action);        
+        FirstBuildAction action = FirstBuildAction.getOrCreate(build);
+
+        if(async && !probeFleet && action.hasPending()) {
+            //Sent in prebuild, the recorder or the end of the build collects the answer
+            return true;
+        }
+
+        if(probeFleet) {
+            //Probe every matching node, the action is already on the build so results show up as they arrive
+            List<Node> nodes = FirstFleetProbe.selectNodes(fleetLabel);
+            listener.getLogger().println("Probing " + nodes.size() + " nodes");
+            FirstFleetProbe probe = new FirstFleetProbe(getFleetThreads(), getFleetTimeout() * 1000L, cacheTtlMillis,
+                    getProbeMode(), factNames);
+            int failed = probe.probe(nodes, action, listener.getLogger());
+            listener.getLogger().println((nodes.size() - failed) + " of " + nodes.size() + " nodes answered");
+            return true;
+        }
+
+        boolean stale = false;
+        String node = runOnSlaves ? build.getBuiltOnStr() : "";
+        FirstFacts found = probe(build, node, cacheTtlMillis, factNames, listener.getLogger());
+        if(found == null) {
+            found = FirstProbeGuard.get().fallback(node);
+            stale = found != null;
+            if(stale) {
+                listener.getLogger().println("Using the last known java version, marked as stale");
+            } else {
+                found = new FirstFacts(FirstJavaVersion.UNKNOWN, new String[0], new String[0]);
+            }
+        }
+
+        FirstJavaVersion version = found.getJavaVersion();
+        String javaVersion = version.toString();
+        listener.getLogger().println( "Found this java version: " + javaVersion + " (" + version.getSource() + ")");
+        node = node.length() == 0 ? "master" : node;
+        action.addInfo(node, javaVersion, stale);
+        if(found.size() > 0) {
+            listener.getLogger().println( "Found these facts: " + found);
+            action.addFacts(node, found);
         }
         
         return true;
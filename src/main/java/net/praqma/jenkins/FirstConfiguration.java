@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.Extension;
+import hudson.util.ListBoxModel;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Plugin wide settings, shown in the 'Configure System' page of Jenkins.
+ *
+ * A {@link GlobalConfiguration} is a singleton {@link hudson.model.Descriptor}, which is persisted in the Jenkins home
+ * directory as 'net.praqma.jenkins.FirstConfiguration.xml'. The values are bound from the form in config.jelly
+ * using the setters below.
+ *
+ * @author Praqma
+ */
+@Extension
+public class FirstConfiguration extends GlobalConfiguration {
+
+    /**
+     * Default number of minutes a probe result is kept in the agent side {@link FirstProbeCache}.
+     */
+    public static final int DEFAULT_PROBE_CACHE_TTL_MINUTES = 60;
+
+    /**
+     * Default number of nodes probed at the same time when they come online, see {@link FirstPrewarm}.
+     */
+    public static final int DEFAULT_PREWARM_THREADS = 4;
+
+    /**
+     * Defaults of the per node breaker, see {@link FirstProbeGuard}.
+     */
+    public static final int DEFAULT_BREAKER_FAILURES = 3;
+    public static final int DEFAULT_BREAKER_COOLDOWN_MINUTES = 5;
+
+    /**
+     * Where the infos of a {@link FirstBuildAction} are kept once the build has completed.
+     */
+    public enum Storage {
+        BUILD_XML("In build.xml of each build"),
+        SIDE_FILE("In a file next to build.xml, read when needed"),
+        PROBE_LOG("In a binary log per project");
+
+        private final String displayName;
+
+        private Storage(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private int probeCacheTtlMinutes = DEFAULT_PROBE_CACHE_TTL_MINUTES;
+    private Storage storage;
+    private int prewarmThreads = DEFAULT_PREWARM_THREADS;
+    private int breakerFailures = DEFAULT_BREAKER_FAILURES;
+    private int breakerCooldownMinutes = DEFAULT_BREAKER_COOLDOWN_MINUTES;
+
+    public FirstConfiguration() {
+        load();
+    }
+
+    /**
+     * @return the configuration singleton
+     */
+    public static FirstConfiguration get() {
+        return GlobalConfiguration.all().get(FirstConfiguration.class);
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "First Plugin";
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        req.bindJSON(this, json);
+        save();
+        return true;
+    }
+
+    /**
+     * @return the number of minutes a cached probe result is valid. Zero disables the cache.
+     */
+    public int getProbeCacheTtlMinutes() {
+        return probeCacheTtlMinutes;
+    }
+
+    public void setProbeCacheTtlMinutes(int probeCacheTtlMinutes) {
+        this.probeCacheTtlMinutes = Math.max(0, probeCacheTtlMinutes);
+    }
+
+    public long getProbeCacheTtlMillis() {
+        return probeCacheTtlMinutes * 60L * 1000L;
+    }
+
+    /**
+     * @return the maximum number of nodes probed at the same time when they come online. Zero disables it.
+     */
+    public int getPrewarmThreads() {
+        return prewarmThreads;
+    }
+
+    public void setPrewarmThreads(int prewarmThreads) {
+        this.prewarmThreads = Math.max(0, prewarmThreads);
+    }
+
+    /**
+     * @return the number of failed or slow probes in a row that stop a node from being probed. Zero disables it.
+     */
+    public int getBreakerFailures() {
+        return breakerFailures;
+    }
+
+    public void setBreakerFailures(int breakerFailures) {
+        this.breakerFailures = Math.max(0, breakerFailures);
+    }
+
+    /**
+     * @return the number of minutes a node is not probed, once its breaker is open
+     */
+    public int getBreakerCooldownMinutes() {
+        return breakerCooldownMinutes;
+    }
+
+    public void setBreakerCooldownMinutes(int breakerCooldownMinutes) {
+        this.breakerCooldownMinutes = Math.max(1, breakerCooldownMinutes);
+    }
+
+    /**
+     * Builds keep their infos in build.xml, as they always have, unless one of the other storages is chosen on the
+     * configuration page.
+     *
+     * @return where completed builds keep their infos, see {@link FirstProbeLog}
+     */
+    public Storage getStorage() {
+        return storage != null ? storage : Storage.BUILD_XML;
+    }
+
+    public void setStorage(Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Fills the drop down list for the field 'storage'.
+     *
+     * @return the items of the list
+     */
+    public ListBoxModel doFillStorageItems() {
+        ListBoxModel items = new ListBoxModel();
+        for(Storage value : Storage.values()) {
+            items.add(value.getDisplayName(), value.name());
+        }
+        return items;
+    }
+}
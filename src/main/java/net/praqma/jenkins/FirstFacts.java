@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import java.io.Serializable;
+
+/**
+ * The answer of a {@link FirstFactsOperation}: the java version and a number of named facts about the node.
+ *
+ * Names and values are kept in two arrays, as that is the cheapest thing to send over the remoting channel.
+ *
+ * @author Praqma
+ */
+public final class FirstFacts implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final FirstJavaVersion javaVersion;
+    private final String[] names;
+    private final String[] values;
+
+    public FirstFacts(FirstJavaVersion javaVersion, String[] names, String[] values) {
+        this.javaVersion = javaVersion;
+        this.names = names;
+        this.values = values;
+    }
+
+    public FirstJavaVersion getJavaVersion() {
+        return javaVersion;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public String getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @param name the name of a fact
+     * @return the value, or null if the fact was not gathered
+     */
+    public String get(String name) {
+        for(int i = 0; i < names.length; i++) {
+            if(names[i].equals(name)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.valueOf(javaVersion));
+        for(int i = 0; i < names.length; i++) {
+            builder.append(", ").append(names[i]).append('=').append(values[i]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gathers several facts about a node in a single remote call. Asking for each fact with its own operation would
+ * cost a round trip to the slave per fact, which adds up on slow links.
+ *
+ * The java version is always found, using a {@link FirstRemoteOperation}. The other facts are given by name:
+ * <ul>
+ * <li>OS_NAME, OS_VERSION and OS_ARCH from the system properties of the slave JVM</li>
+ * <li>CPU_COUNT, the number of processors available to the slave JVM</li>
+ * <li>FREE_DISK, the number of bytes free in the directory the operation is acting on</li>
+ * <li>env.NAME, the value of the environment variable NAME</li>
+ * </ul>
+ *
+ * Unknown names are answered with an empty value, so a typo does not fail the build.
+ *
+ * @author Praqma
+ */
+public class FirstFactsOperation implements FilePath.FileCallable<FirstFacts> {
+
+    public static final String OS_NAME = "OS_NAME";
+    public static final String OS_VERSION = "OS_VERSION";
+    public static final String OS_ARCH = "OS_ARCH";
+    public static final String CPU_COUNT = "CPU_COUNT";
+    public static final String FREE_DISK = "FREE_DISK";
+    public static final String ENV_PREFIX = "env.";
+
+    private final FirstRemoteOperation javaProbe;
+    private final String[] facts;
+
+    /**
+     * @param javaProbe the operation finding the java version, it is invoked directly on the remote
+     * @param facts the names of the facts to gather
+     */
+    public FirstFactsOperation(FirstRemoteOperation javaProbe, String[] facts) {
+        this.javaProbe = javaProbe;
+        this.facts = facts;
+    }
+
+    /**
+     * Splits the configured list of facts, which is separated by commas or whitespace.
+     *
+     * @param facts the list from the configuration, may be null
+     * @return the names of the facts
+     */
+    public static String[] parse(String facts) {
+        List<String> names = new ArrayList<String>();
+        if(facts != null) {
+            for(String name : facts.split("[,\\s]+")) {
+                if(name.length() > 0) {
+                    names.add(name);
+                }
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    public FirstFacts invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        FirstJavaVersion javaVersion = javaProbe.invoke(f, channel);
+        String[] values = new String[facts.length];
+        for(int i = 0; i < facts.length; i++) {
+            values[i] = gather(facts[i], f);
+        }
+        return new FirstFacts(javaVersion, facts, values);
+    }
+
+    private static String gather(String fact, File f) {
+        if(fact.startsWith(ENV_PREFIX)) {
+            String value = System.getenv(fact.substring(ENV_PREFIX.length()));
+            return value != null ? value : "";
+        } else if(fact.equals(OS_NAME)) {
+            return System.getProperty("os.name");
+        } else if(fact.equals(OS_VERSION)) {
+            return System.getProperty("os.version");
+        } else if(fact.equals(OS_ARCH)) {
+            return System.getProperty("os.arch");
+        } else if(fact.equals(CPU_COUNT)) {
+            return String.valueOf(Runtime.getRuntime().availableProcessors());
+        } else if(fact.equals(FREE_DISK)) {
+            File dir = f != null ? f : new File(".");
+            return String.valueOf(dir.getUsableSpace());
+        }
+        return "";
+    }
+}
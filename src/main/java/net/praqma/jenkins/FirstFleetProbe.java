@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import antlr.ANTLRException;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import jenkins.model.Jenkins;
+
+/**
+ * Sends the {@link FirstRemoteOperation} to many nodes at the same time.
+ *
+ * Each node is probed by a task in a bounded thread pool, and every task has its own timeout, so a node that never
+ * answers only costs us the timeout, not the whole build. The results are added to the {@link FirstBuildAction} in
+ * the order they arrive, which means the whole sweep takes about as long as the slowest node.
+ *
+ * Nodes that do not answer before the timeout, or whose breaker is open, get their last known java version, marked
+ * stale, see {@link FirstProbeGuard}. A straggler therefore never holds the sweep longer than the timeout.
+ *
+ * @author Praqma
+ */
+public class FirstFleetProbe {
+
+    private final int threads;
+    private final long timeoutMillis;
+    private final long cacheTtlMillis;
+    private final FirstRemoteOperation.ProbeMode mode;
+    private final String[] facts;
+
+    /**
+     * @param threads the maximum number of nodes probed at the same time
+     * @param timeoutMillis how long we wait for a single node
+     * @param cacheTtlMillis passed on to the {@link FirstRemoteOperation}
+     * @param mode passed on to the {@link FirstRemoteOperation}
+     * @param facts the facts gathered together with the java version, see {@link FirstFactsOperation}
+     */
+    public FirstFleetProbe(int threads, long timeoutMillis, long cacheTtlMillis, FirstRemoteOperation.ProbeMode mode, String[] facts) {
+        this.threads = threads;
+        this.timeoutMillis = timeoutMillis;
+        this.cacheTtlMillis = cacheTtlMillis;
+        this.mode = mode;
+        this.facts = facts;
+    }
+
+    /**
+     * Finds the nodes to probe.
+     *
+     * @param labelExpression a label expression, or null or empty for every node
+     * @return the nodes that are online
+     * @throws AbortException if the label expression is not valid
+     */
+    public static List<Node> selectNodes(String labelExpression) throws AbortException {
+        List<Node> nodes = new ArrayList<Node>();
+        if(labelExpression == null || labelExpression.trim().length() == 0) {
+            for(Computer computer : Jenkins.getInstance().getComputers()) {
+                Node node = computer.getNode();
+                if(node != null && computer.isOnline()) {
+                    nodes.add(node);
+                }
+            }
+            return nodes;
+        }
+
+        Label label;
+        try {
+            label = Label.parseExpression(labelExpression);
+        } catch (ANTLRException e) {
+            throw new AbortException("Invalid label expression '" + labelExpression + "': " + e.getMessage());
+        }
+        for(Node node : label.getNodes()) {
+            Computer computer = node.toComputer();
+            if(computer != null && computer.isOnline()) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Probes the nodes, and adds each result to the action as soon as it arrives.
+     *
+     * @param nodes the nodes to probe
+     * @param action the action to add the results to
+     * @param logger the build log
+     * @return the number of nodes that did not answer
+     * @throws InterruptedException if the build is aborted while we wait
+     */
+    public int probe(List<Node> nodes, FirstBuildAction action, PrintStream logger) throws InterruptedException {
+        if(nodes.isEmpty()) {
+            return 0;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, nodes.size())),
+                new NamingThreadFactory(new DaemonThreadFactory(), "FirstFleetProbe"));
+        CompletionService<Answer> completion = new ExecutorCompletionService<Answer>(executor);
+        try {
+            for(Node node : nodes) {
+                completion.submit(new ProbeTask(node));
+            }
+
+            int failed = 0;
+            for(int i = 0; i < nodes.size(); i++) {
+                Answer answer;
+                try {
+                    answer = completion.take().get();
+                } catch (ExecutionException e) {
+                    //ProbeTask catches everything itself, so this is unexpected
+                    failed++;
+                    logger.println("Probe failed: " + e.getCause());
+                    continue;
+                }
+
+                if(answer.facts == null) {
+                    failed++;
+                    FirstFacts fallback = FirstProbeGuard.get().fallback(answer.node);
+                    if(fallback != null) {
+                        logger.println(String.format("%s: %s, using the last known %s", answer.nodeName, answer.error, fallback.getJavaVersion()));
+                        action.addInfo(answer.nodeName, fallback.getJavaVersion().toString(), true);
+                    } else {
+                        logger.println(String.format("%s: %s", answer.nodeName, answer.error));
+                        action.addInfo(answer.nodeName, FirstJavaVersion.UNKNOWN.toString());
+                    }
+                } else {
+                    logger.println(String.format("%s: %s", answer.nodeName, answer.facts));
+                    action.addInfo(answer.nodeName, answer.facts.getJavaVersion().toString());
+                    action.addFacts(answer.nodeName, answer.facts);
+                }
+            }
+            return failed;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param node a node
+     * @return a readable name, as master has the empty string as its name
+     */
+    public static String nameOf(Node node) {
+        String name = node.getNodeName();
+        return name.length() == 0 ? "master" : name;
+    }
+
+    private static final class Answer {
+        final String node;
+        final String nodeName;
+        final FirstFacts facts;
+        final String error;
+
+        /**
+         * @param node the node name, the empty string for master
+         */
+        Answer(String node, FirstFacts facts, String error) {
+            this.node = node;
+            this.nodeName = node.length() == 0 ? "master" : node;
+            this.facts = facts;
+            this.error = error;
+        }
+    }
+
+    private final class ProbeTask implements Callable<Answer> {
+        private final Node node;
+
+        ProbeTask(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public Answer call() throws InterruptedException {
+            String name = node.getNodeName();
+            FilePath root = node.getRootPath();
+            if(root == null) {
+                return new Answer(name, null, "went offline");
+            }
+            FirstProbeGuard guard = FirstProbeGuard.get();
+            if(!guard.allow(name)) {
+                return new Answer(name, null, "not probed, its probes failed or were slow too often lately");
+            }
+
+            Future<FirstFacts> future = null;
+            FirstFacts found = null;
+            boolean interrupted = false;
+            long start = System.nanoTime();
+            try {
+                //One round trip per node, no matter how many facts we ask for
+                FirstRemoteOperation javaProbe = new FirstRemoteOperation(name, cacheTtlMillis, mode);
+                FirstFactsOperation operation = new FirstFactsOperation(javaProbe, facts);
+                //The timeout starts when the task starts, not when it was queued
+                future = root.actAsync(operation);
+                found = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+                return new Answer(name, found, null);
+            } catch (TimeoutException e) {
+                return new Answer(name, null, "no answer within " + timeoutMillis + " ms");
+            } catch (ExecutionException e) {
+                return new Answer(name, null, String.valueOf(e.getCause()));
+            } catch (IOException e) {
+                return new Answer(name, null, e.toString());
+            } catch (InterruptedException e) {
+                //The build was aborted, which says nothing about the node
+                interrupted = true;
+                throw e;
+            } finally {
+                //Not needed anymore if it did not answer in time
+                if(future != null) {
+                    future.cancel(true);
+                }
+                if(interrupted) {
+                    guard.release(name);
+                } else {
+                    long nanos = System.nanoTime() - start;
+                    FirstJavaVersion version = found != null ? found.getJavaVersion() : null;
+                    FirstMetrics.get().recordProbe(name, nanos, FirstMetrics.outcomeOf(version));
+                    guard.record(name, version, nanos, timeoutMillis);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.XmlFile;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Which java versions were seen where, across all projects: for every node the versions found on it and when
+ * they were last seen, and for every version the projects that found it.
+ *
+ * It is updated once per completed build with a {@link FirstBuildAction}, so questions like "which nodes and jobs saw
+ * this JDK the last week" never have to load any builds. The inventory is kept in memory, and saved to
+ * first-inventory.xml in the Jenkins home directory at most every {@link #SAVE_DELAY_SECONDS} seconds, one line per
+ * node and version, or version and project. Entries not seen for {@link #RETENTION_DAYS} days are dropped.
+ *
+ * @author Praqma
+ */
+public final class FirstInventory {
+
+    private static final Logger LOGGER = Logger.getLogger(FirstInventory.class.getName());
+
+    static final String FILE_NAME = "first-inventory.xml";
+    static final long SAVE_DELAY_SECONDS = 10;
+    static final int RETENTION_DAYS = 90;
+
+    private static FirstInventory instance;
+
+    /**
+     * The persisted form, lines of 'node TAB version TAB last seen' and 'version TAB project TAB last seen'.
+     */
+    private List<String> nodes = new ArrayList<String>();
+    private List<String> projects = new ArrayList<String>();
+
+    private transient Map<String, Map<String, Long>> nodeVersions;
+    private transient Map<String, Map<String, Long>> versionProjects;
+    private transient boolean saveScheduled;
+
+    private FirstInventory() {
+        readResolve();
+    }
+
+    private Object readResolve() {
+        nodeVersions = parse(nodes);
+        versionProjects = parse(projects);
+        return this;
+    }
+
+    /**
+     * @return the inventory, read from disk the first time
+     */
+    public static synchronized FirstInventory get() {
+        if(instance == null) {
+            XmlFile file = getFile();
+            if(file.exists()) {
+                try {
+                    instance = (FirstInventory) file.read();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Unable to read " + file + ", the inventory starts over", e);
+                }
+            }
+            if(instance == null) {
+                instance = new FirstInventory();
+            }
+        }
+        return instance;
+    }
+
+    private static XmlFile getFile() {
+        return new XmlFile(new File(Jenkins.getInstance().getRootDir(), FILE_NAME));
+    }
+
+    /**
+     * Records the java versions of a completed build.
+     *
+     * @param project the full name of the project
+     * @param action the action of the build
+     */
+    public void record(String project, FirstBuildAction action) {
+        long now = System.currentTimeMillis();
+        synchronized (action) {
+            synchronized (this) {
+                for(int i = 0; i < action.size(); i++) {
+                    String node = action.getNode(i);
+                    String version = action.getJavaVersion(i);
+                    see(nodeVersions, node != null ? node : "master", version, now);
+                    see(versionProjects, version, project, now);
+                }
+            }
+        }
+        scheduleSave();
+    }
+
+    private static void see(Map<String, Map<String, Long>> map, String key, String value, long time) {
+        Map<String, Long> values = map.get(key);
+        if(values == null) {
+            values = new HashMap<String, Long>();
+            map.put(key, values);
+        }
+        values.put(value, time);
+    }
+
+    /**
+     * Saves a little later, so a burst of completed builds is written once.
+     */
+    private synchronized void scheduleSave() {
+        if(saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private synchronized void save() {
+        saveScheduled = false;
+        long oldest = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(RETENTION_DAYS);
+        nodes = format(nodeVersions, oldest);
+        projects = format(versionProjects, oldest);
+        try {
+            getFile().write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save the java version inventory", e);
+        }
+    }
+
+    /**
+     * Gets the java versions seen since a point in time, with the nodes and projects that saw them.
+     *
+     * @param since the earliest time of interest, 0 for everything
+     * @return the versions, sorted by name
+     */
+    public synchronized List<Version> getVersions(long since) {
+        Map<String, Version> versions = new TreeMap<String, Version>();
+        for(Map.Entry<String, Map<String, Long>> node : nodeVersions.entrySet()) {
+            for(Map.Entry<String, Long> version : node.getValue().entrySet()) {
+                if(version.getValue() >= since) {
+                    versionNamed(versions, version.getKey()).nodes.add(new Seen(node.getKey(), version.getValue()));
+                }
+            }
+        }
+        for(Map.Entry<String, Map<String, Long>> version : versionProjects.entrySet()) {
+            for(Map.Entry<String, Long> project : version.getValue().entrySet()) {
+                if(project.getValue() >= since) {
+                    versionNamed(versions, version.getKey()).projects.add(new Seen(project.getKey(), project.getValue()));
+                }
+            }
+        }
+        for(Version version : versions.values()) {
+            Collections.sort(version.nodes);
+            Collections.sort(version.projects);
+        }
+        return new ArrayList<Version>(versions.values());
+    }
+
+    private static Version versionNamed(Map<String, Version> versions, String name) {
+        Version version = versions.get(name);
+        if(version == null) {
+            version = new Version(name);
+            versions.put(name, version);
+        }
+        return version;
+    }
+
+    private static List<String> format(Map<String, Map<String, Long>> map, long oldest) {
+        List<String> lines = new ArrayList<String>();
+        for(Iterator<Map.Entry<String, Map<String, Long>>> keys = map.entrySet().iterator(); keys.hasNext();) {
+            Map.Entry<String, Map<String, Long>> key = keys.next();
+            for(Iterator<Map.Entry<String, Long>> values = key.getValue().entrySet().iterator(); values.hasNext();) {
+                Map.Entry<String, Long> value = values.next();
+                if(value.getValue() < oldest) {
+                    values.remove();
+                } else {
+                    lines.add(clean(key.getKey()) + '\t' + clean(value.getKey()) + '\t' + value.getValue());
+                }
+            }
+            if(key.getValue().isEmpty()) {
+                keys.remove();
+            }
+        }
+        return lines;
+    }
+
+    private static Map<String, Map<String, Long>> parse(List<String> lines) {
+        Map<String, Map<String, Long>> map = new HashMap<String, Map<String, Long>>();
+        if(lines != null) {
+            for(String line : lines) {
+                String[] parts = line.split("\t");
+                if(parts.length == 3) {
+                    try {
+                        see(map, parts[0], parts[1], Long.parseLong(parts[2]));
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(Level.FINE, "Skipping inventory line {0}", line);
+                    }
+                }
+            }
+        }
+        return map;
+    }
+
+    private static String clean(String value) {
+        return value.replace('\t', ' ');
+    }
+
+    /**
+     * A java version, with the nodes and projects it was seen on.
+     */
+    public static final class Version {
+        private final String name;
+        private final List<Seen> nodes = new ArrayList<Seen>();
+        private final List<Seen> projects = new ArrayList<Seen>();
+
+        Version(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Seen> getNodes() {
+            return nodes;
+        }
+
+        public List<Seen> getProjects() {
+            return projects;
+        }
+    }
+
+    /**
+     * A node or project, and when it last saw a version.
+     */
+    public static final class Seen implements Comparable<Seen> {
+        private final String name;
+        private final long lastSeen;
+
+        Seen(String name, long lastSeen) {
+            this.name = name;
+            this.lastSeen = lastSeen;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Date getLastSeen() {
+            return new Date(lastSeen);
+        }
+
+        @Override
+        public int compareTo(Seen other) {
+            return name.compareTo(other.name);
+        }
+    }
+}
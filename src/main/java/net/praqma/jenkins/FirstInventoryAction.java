@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+
+/**
+ * Shows the {@link FirstInventory} at JENKINS_URL/first-inventory/. The page lists every java version, with the nodes
+ * it was found on and the projects that found it. Add '?days=7' to only see what was seen the last week.
+ *
+ * @author Praqma
+ */
+@Extension
+public class FirstInventoryAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        return "/plugin/first-plugin/images/64x64/one-icon.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Java Inventory";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "first-inventory";
+    }
+
+    /**
+     * Used by index.jelly. Projects the current user cannot see are left out.
+     *
+     * @param days only versions seen the last number of days, everything if empty or not a number
+     * @return the versions, sorted by name
+     */
+    public List<FirstInventory.Version> getVersions(String days) {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        long since = 0;
+        if(days != null && days.trim().length() > 0) {
+            try {
+                since = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(Integer.parseInt(days.trim()));
+            } catch (NumberFormatException e) {
+                since = 0;
+            }
+        }
+        List<FirstInventory.Version> versions = new ArrayList<FirstInventory.Version>();
+        for(FirstInventory.Version version : FirstInventory.get().getVersions(since)) {
+            for(Iterator<FirstInventory.Seen> projects = version.getProjects().iterator(); projects.hasNext();) {
+                //Null if the project is gone, or the user may not read it
+                if(Jenkins.getInstance().getItemByFullName(projects.next().getName()) == null) {
+                    projects.remove();
+                }
+            }
+            versions.add(version);
+        }
+        return versions;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Small immutable data class describing a java installation found by the {@link FirstRemoteOperation}.
+ *
+ * The class is {@link Serializable}, because it is created on the remote and returned to the master.
+ *
+ * @author Praqma
+ */
+public final class FirstJavaVersion implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Where the information was found.
+     */
+    public enum Source {
+        RELEASE_FILE, SYSTEM_PROPERTIES, PROCESS, NONE
+    }
+
+    public static final FirstJavaVersion UNKNOWN = new FirstJavaVersion("Unknown", null, null, Source.NONE);
+
+    /**
+     * Matches the first line of 'java -version', like: openjdk version "17.0.9" 2023-10-17
+     */
+    private static final Pattern VERSION_LINE = Pattern.compile("version \"([^\"]+)\"");
+
+    private final String version;
+    private final String vendor;
+    private final String javaHome;
+    private final Source source;
+
+    public FirstJavaVersion(String version, String vendor, String javaHome, Source source) {
+        this.version = version;
+        this.vendor = vendor;
+        this.javaHome = javaHome;
+        this.source = source;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getVendor() {
+        return vendor;
+    }
+
+    public String getJavaHome() {
+        return javaHome;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    public boolean isUnknown() {
+        return source == Source.NONE;
+    }
+
+    /**
+     * Reads the 'release' file, which every JDK since 7 has in its installation directory. No process is started.
+     *
+     * @param home the installation directory
+     * @return the version, or null if there is no readable release file
+     */
+    public static FirstJavaVersion fromReleaseFile(File home) {
+        File release = new File(home, "release");
+        if(!release.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(release);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        String version = unquote(properties.getProperty("JAVA_VERSION"));
+        if(version == null) {
+            return null;
+        }
+        return new FirstJavaVersion(version, unquote(properties.getProperty("IMPLEMENTOR")), home.getPath(), Source.RELEASE_FILE);
+    }
+
+    /**
+     * @return the version of the JVM we are running in, which for a remote operation is the JVM of the slave agent
+     */
+    public static FirstJavaVersion fromSystemProperties() {
+        return new FirstJavaVersion(System.getProperty("java.version"), System.getProperty("java.vendor"),
+                System.getProperty("java.home"), Source.SYSTEM_PROPERTIES);
+    }
+
+    /**
+     * Parses the output of 'java -version'. Note that java prints this on standard error, not standard out, and that
+     * lines like 'Picked up JAVA_TOOL_OPTIONS: ...' may come first.
+     *
+     * The first word of the version line is the vendor, 'openjdk' for instance, except for 'java', which says nothing.
+     *
+     * @param lines the output lines
+     * @param home the installation directory, or null if not known
+     * @return the version, or {@link #UNKNOWN} if the output could not be understood
+     */
+    public static FirstJavaVersion fromVersionOutput(List<String> lines, File home) {
+        if(lines == null) {
+            return UNKNOWN;
+        }
+        String path = home != null ? home.getPath() : null;
+        for(String line : lines) {
+            Matcher m = VERSION_LINE.matcher(line);
+            if(m.find()) {
+                String first = line.trim();
+                int space = first.indexOf(' ');
+                String vendor = space > 0 ? first.substring(0, space) : null;
+                if("java".equals(vendor) || "version".equals(vendor)) {
+                    vendor = null;
+                }
+                return new FirstJavaVersion(m.group(1), vendor, path, Source.PROCESS);
+            }
+        }
+        //No version line, the first line that is not a notice is all we have
+        for(String line : lines) {
+            if(line.trim().length() > 0 && !line.startsWith("Picked up ")) {
+                return new FirstJavaVersion(line.trim(), null, path, Source.PROCESS);
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Finds the installation directory from the java executable, resolving symbolic links on the way.
+     *
+     * @param java the java executable
+     * @return the installation directory, or null if java is null
+     */
+    public static File homeOf(File java) {
+        if(java == null) {
+            return null;
+        }
+        File canonical;
+        try {
+            canonical = java.getCanonicalFile();
+        } catch (IOException e) {
+            canonical = java.getAbsoluteFile();
+        }
+        File bin = canonical.getParentFile();
+        File home = bin != null ? bin.getParentFile() : null;
+        //Java 8 and older has the java executable in a jre directory below the jdk
+        if(home != null && home.getName().equals("jre") && !new File(home, "release").isFile()) {
+            return home.getParentFile();
+        }
+        return home;
+    }
+
+    private static String unquote(String value) {
+        if(value == null) {
+            return null;
+        }
+        String trimmed = value.trim();
+        if(trimmed.length() >= 2 && trimmed.startsWith("\"") && trimmed.endsWith("\"")) {
+            return trimmed.substring(1, trimmed.length() - 1);
+        }
+        return trimmed;
+    }
+
+    @Override
+    public String toString() {
+        return vendor != null ? String.format("%s (%s)", version, vendor) : version;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the probes and build steps of the plugin, written in the Prometheus text
+ * format by the {@link FirstMetricsAction}.
+ *
+ * Recording a value is a handful of atomic increments, no locks, so it can be done on every probe. The histograms
+ * have fixed, roughly logarithmic buckets from one millisecond to a minute, which is plenty to spot a slow slave.
+ *
+ * Everything is tagged with the node, and probes also with where they ran: 'master' or 'agent'.
+ *
+ * @author Praqma
+ */
+public final class FirstMetrics {
+
+    /**
+     * The outcome of a probe.
+     */
+    public enum Outcome {
+        /** A java version was found */
+        OK,
+        /** The probe ran, but no java version was found */
+        UNKNOWN,
+        /** The probe failed or timed out */
+        ERROR
+    }
+
+    /**
+     * Upper bounds of the histogram buckets, in seconds.
+     */
+    static final double[] BUCKETS = { 0.001, 0.002, 0.005, 0.01, 0.02, 0.05, 0.1, 0.2, 0.5, 1, 2, 5, 10, 30, 60 };
+
+    private static final FirstMetrics INSTANCE = new FirstMetrics();
+
+    private final ConcurrentMap<String, Histogram> probeSeconds = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, AtomicLong> probes = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> guardEvents = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Histogram> builderSeconds = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, Histogram> recorderSeconds = new ConcurrentHashMap<String, Histogram>();
+
+    private FirstMetrics() {
+    }
+
+    public static FirstMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records a probe of a node, as seen from master, so the time includes the remoting round trip.
+     *
+     * @param node the name of the node, the empty string for master
+     * @param nanos the time it took
+     * @param outcome how it went
+     */
+    public void recordProbe(String node, long nanos, Outcome outcome) {
+        String labels = labels("node", nodeName(node), "execution", node == null || node.length() == 0 ? "master" : "agent");
+        histogram(probeSeconds, labels).record(nanos);
+        counter(probes, labels + ",outcome=\"" + outcome.name().toLowerCase() + "\"").incrementAndGet();
+    }
+
+    /**
+     * Records something the {@link FirstProbeGuard} or the fleet probe did instead of a plain probe.
+     *
+     * @param node the name of the node, the empty string for master
+     * @param event 'skipped', 'opened' or 'stale'
+     */
+    public void recordGuard(String node, String event) {
+        counter(guardEvents, labels("node", nodeName(node), "event", event)).incrementAndGet();
+    }
+
+    public void recordBuilder(String node, long nanos) {
+        histogram(builderSeconds, labels("node", nodeName(node))).record(nanos);
+    }
+
+    public void recordRecorder(String node, long nanos) {
+        histogram(recorderSeconds, labels("node", nodeName(node))).record(nanos);
+    }
+
+    /**
+     * Drops every metric of a node that is not in the given set. Called when nodes are removed, so the metrics do
+     * not grow with every agent that ever existed.
+     *
+     * @param names the names of the nodes to keep, the empty string for master
+     */
+    public void retainNodes(Set<String> names) {
+        Set<String> kept = new HashSet<String>();
+        for(String name : names) {
+            kept.add(labels("node", nodeName(name)));
+        }
+        retainNodes(probeSeconds, kept);
+        retainNodes(probes, kept);
+        retainNodes(guardEvents, kept);
+        retainNodes(builderSeconds, kept);
+        retainNodes(recorderSeconds, kept);
+    }
+
+    private static void retainNodes(ConcurrentMap<String, ?> metrics, Set<String> kept) {
+        for(String labels : metrics.keySet()) {
+            if(!kept.contains(nodeLabel(labels))) {
+                metrics.remove(labels);
+            }
+        }
+    }
+
+    /**
+     * @return the node label, which is always the first, of labels made by {@link #labels}
+     */
+    static String nodeLabel(String labels) {
+        //Skip the opening quote, then find the closing one, quotes in the value are escaped
+        for(int i = labels.indexOf('"') + 1; i > 0 && i < labels.length(); i++) {
+            if(labels.charAt(i) == '\\') {
+                i++;
+            } else if(labels.charAt(i) == '"') {
+                return labels.substring(0, i + 1);
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * @return the outcome matching a probe result
+     */
+    public static Outcome outcomeOf(FirstJavaVersion version) {
+        return version == null ? Outcome.ERROR : version.isUnknown() ? Outcome.UNKNOWN : Outcome.OK;
+    }
+
+    private static String nodeName(String node) {
+        return node == null || node.length() == 0 ? "master" : node;
+    }
+
+    private static Histogram histogram(ConcurrentMap<String, Histogram> histograms, String labels) {
+        Histogram histogram = histograms.get(labels);
+        if(histogram == null) {
+            histograms.putIfAbsent(labels, new Histogram());
+            histogram = histograms.get(labels);
+        }
+        return histogram;
+    }
+
+    private static AtomicLong counter(ConcurrentMap<String, AtomicLong> counters, String labels) {
+        AtomicLong counter = counters.get(labels);
+        if(counter == null) {
+            counters.putIfAbsent(labels, new AtomicLong());
+            counter = counters.get(labels);
+        }
+        return counter;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format, version 0.0.4.
+     *
+     * @param out where to write
+     */
+    public void writeTo(PrintWriter out) {
+        writeHistograms(out, "first_probe_seconds", "Time to probe a node for its java version, seen from master", probeSeconds);
+        out.println("# HELP first_probes_total Number of probes, by outcome");
+        out.println("# TYPE first_probes_total counter");
+        for(Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(probes).entrySet()) {
+            out.println("first_probes_total{" + entry.getKey() + "} " + entry.getValue().get());
+        }
+        out.println("# HELP first_probe_guard_total Probes skipped by an open breaker, breakers opened and stale answers used");
+        out.println("# TYPE first_probe_guard_total counter");
+        for(Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(guardEvents).entrySet()) {
+            out.println("first_probe_guard_total{" + entry.getKey() + "} " + entry.getValue().get());
+        }
+        writeHistograms(out, "first_builder_seconds", "Time spent in FirstBuilder.perform", builderSeconds);
+        writeHistograms(out, "first_recorder_seconds", "Time spent in FirstRecorder.perform", recorderSeconds);
+    }
+
+    private static void writeHistograms(PrintWriter out, String name, String help, ConcurrentMap<String, Histogram> histograms) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " histogram");
+        for(Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+            entry.getValue().writeTo(out, name, entry.getKey());
+        }
+    }
+
+    /**
+     * @param pairs label names and values, alternating
+     * @return the labels as they appear between the braces
+     */
+    static String labels(String... pairs) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i + 1 < pairs.length; i += 2) {
+            if(builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(pairs[i]).append("=\"").append(escape(pairs[i + 1])).append('"');
+        }
+        return builder.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * A histogram with the fixed {@link #BUCKETS}. Counts are per bucket, and made cumulative when written.
+     */
+    static final class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        void record(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while(bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            sumNanos.addAndGet(nanos);
+        }
+
+        void writeTo(PrintWriter out, String name, String labels) {
+            String prefix = labels.length() > 0 ? labels + "," : "";
+            long cumulative = 0;
+            for(int i = 0; i < BUCKETS.length; i++) {
+                cumulative += counts.get(i);
+                out.println(name + "_bucket{" + prefix + "le=\"" + BUCKETS[i] + "\"} " + cumulative);
+            }
+            cumulative += counts.get(BUCKETS.length);
+            out.println(name + "_bucket{" + prefix + "le=\"+Inf\"} " + cumulative);
+            out.println(name + "_sum{" + labels + "} " + (sumNanos.get() / 1e9));
+            out.println(name + "_count{" + labels + "} " + cumulative);
+        }
+    }
+}
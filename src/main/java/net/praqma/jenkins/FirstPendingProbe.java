@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import java.io.PrintStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A probe that has been sent to a node, but whose answer has not been added to the {@link FirstBuildAction} yet.
+ *
+ * The {@link FirstBuilder} can dispatch its probe when the build starts, and let the build carry on while the
+ * node answers. The answer is collected by the {@link FirstRecorder}, or at the latest when the build completes.
+ *
+ * @author Praqma
+ */
+public final class FirstPendingProbe {
+
+    private final String node;
+    private final Future<FirstFacts> future;
+    private final long timeoutMillis;
+    private final long started = System.nanoTime();
+
+    /**
+     * @param node the name of the node, the empty string for master
+     * @param future the answer of the {@link FirstFactsOperation}, null if the probe was not sent
+     * @param timeoutMillis how long to wait for the answer, counted from now
+     */
+    public FirstPendingProbe(String node, Future<FirstFacts> future, long timeoutMillis) {
+        this.node = node;
+        this.future = future;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * A probe that was never sent, because {@link FirstProbeGuard#allow(String)} refused it. Collecting it adds the
+     * last known java version, marked as stale, without asking the guard again.
+     *
+     * @param node the name of the node, the empty string for master
+     * @return the probe
+     */
+    public static FirstPendingProbe refused(String node) {
+        return new FirstPendingProbe(node, null, 0);
+    }
+
+    /**
+     * Waits for the answer, if it has not arrived already, and adds it to the action.
+     *
+     * @param action the action to add the answer to
+     * @param logger the build log
+     * @throws InterruptedException if the build is aborted while we wait
+     */
+    public void collect(FirstBuildAction action, PrintStream logger) throws InterruptedException {
+        String name = node.length() == 0 ? "master" : node;
+        if(future == null) {
+            logger.println("Did not probe " + name + ", its probes failed or were slow too often lately");
+            addFallback(action, name, logger);
+            return;
+        }
+        FirstFacts found = null;
+        boolean interrupted = false;
+        try {
+            long remaining = timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            found = future.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            logger.println("No java version from " + name + " within " + timeoutMillis + " ms");
+        } catch (ExecutionException e) {
+            logger.println("Unable to find the java version on " + name + ": " + e.getCause());
+        } catch (InterruptedException e) {
+            //The build was aborted, which says nothing about the node
+            interrupted = true;
+            future.cancel(true);
+            throw e;
+        } finally {
+            if(interrupted) {
+                FirstProbeGuard.get().release(node);
+            } else {
+                long nanos = System.nanoTime() - started;
+                FirstJavaVersion version = found != null ? found.getJavaVersion() : null;
+                FirstMetrics.get().recordProbe(node, nanos, FirstMetrics.outcomeOf(version));
+                FirstProbeGuard.get().record(node, version, nanos, timeoutMillis);
+            }
+        }
+
+        if(found == null) {
+            addFallback(action, name, logger);
+            return;
+        }
+        FirstJavaVersion version = found.getJavaVersion();
+        logger.println( "Found this java version: " + version + " (" + version.getSource() + ")");
+        action.addInfo(name, version.toString());
+        if(found.size() > 0) {
+            logger.println( "Found these facts: " + found);
+            action.addFacts(name, found);
+        }
+    }
+
+    private void addFallback(FirstBuildAction action, String name, PrintStream logger) {
+        FirstFacts fallback = FirstProbeGuard.get().fallback(node);
+        if(fallback != null) {
+            logger.println("Using the last known java version, marked as stale");
+            action.addInfo(name, fallback.getJavaVersion().toString(), true);
+        } else {
+            action.addInfo(name, FirstJavaVersion.UNKNOWN.toString());
+        }
+    }
+
+    /**
+     * Gives up on the answer, for instance when the build is aborted.
+     */
+    public void cancel() {
+        if(future != null) {
+            future.cancel(true);
+            FirstProbeGuard.get().release(node);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.slaves.ComputerListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Probes a node as soon as it comes online, so the first build on the node is answered from the agent side
+ * {@link FirstProbeCache} instead of waiting for the release file or 'java -version'.
+ *
+ * The probes run in a small thread pool with a bounded queue, see {@link FirstConfiguration#getPrewarmThreads()}.
+ * When hundreds of agents reconnect at once, at most that many probes run at the same time, and the ones that do
+ * not fit in the queue are dropped. Those nodes are probed by their first build, as before.
+ *
+ * Nothing is kept on master. The cache on the agent checks the path and the modification time of the java
+ * executable before it answers, so an answer found here is never used after java has been replaced on the node.
+ * The mode is part of the cache key, so the node is probed once in every mode a {@link FirstBuilder} of a project
+ * uses, except {@link FirstRemoteOperation.ProbeMode#SYSTEM_PROPERTIES}, which is never cached.
+ *
+ * The outcome counts in the {@link FirstProbeGuard} of the node, but the probe does not ask the guard first, it is
+ * the first probe since the node came online.
+ *
+ * @author Praqma
+ */
+public final class FirstPrewarm {
+
+    private static final Logger LOGGER = Logger.getLogger(FirstPrewarm.class.getName());
+
+    static final int QUEUE_SIZE = 500;
+    static final long TIMEOUT_MILLIS = 60 * 1000L;
+
+    /**
+     * The pool never has more threads than the configured cap, and they die when idle.
+     */
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+            new NamingThreadFactory(new DaemonThreadFactory(), "First prewarm"));
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Nodes queued or being probed, so a node that flaps is not queued twice.
+     */
+    private static final Set<String> QUEUED = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private FirstPrewarm() {
+    }
+
+    /**
+     * Queues the probe of a node.
+     *
+     * @param node the node that came online
+     * @return false if the probe was not queued
+     */
+    static boolean submit(final Node node) {
+        FirstConfiguration configuration = FirstConfiguration.get();
+        int threads = configuration.getPrewarmThreads();
+        if(threads <= 0 || configuration.getProbeCacheTtlMillis() <= 0) {
+            return false;
+        }
+        synchronized (EXECUTOR) {
+            //The cap may have been changed on the configuration page, the order matters when it shrinks
+            if(threads > EXECUTOR.getMaximumPoolSize()) {
+                EXECUTOR.setMaximumPoolSize(threads);
+                EXECUTOR.setCorePoolSize(threads);
+            } else if(threads < EXECUTOR.getMaximumPoolSize()) {
+                EXECUTOR.setCorePoolSize(threads);
+                EXECUTOR.setMaximumPoolSize(threads);
+            }
+        }
+
+        final String name = node.getNodeName();
+        if(!QUEUED.add(name)) {
+            return false;
+        }
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        probe(node);
+                    } finally {
+                        QUEUED.remove(name);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            QUEUED.remove(name);
+            LOGGER.log(Level.FINE, "Prewarm queue is full, {0} is probed by its first build", name);
+            return false;
+        }
+    }
+
+    /**
+     * @return the modes the builders of all projects probe in, that the agent side cache answers
+     */
+    static Set<FirstRemoteOperation.ProbeMode> cachedModes() {
+        Set<FirstRemoteOperation.ProbeMode> modes = EnumSet.noneOf(FirstRemoteOperation.ProbeMode.class);
+        //Every project, not only those the anonymous pool thread may read
+        SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+        try {
+            for(Project<?, ?> project : Jenkins.getInstance().getAllItems(Project.class)) {
+                for(FirstBuilder builder : project.getBuildersList().getAll(FirstBuilder.class)) {
+                    modes.add(builder.getProbeMode());
+                }
+            }
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+        modes.remove(FirstRemoteOperation.ProbeMode.SYSTEM_PROPERTIES);
+        return modes;
+    }
+
+    private static void probe(Node node) {
+        for(FirstRemoteOperation.ProbeMode mode : cachedModes()) {
+            FilePath root = node.getRootPath();
+            if(root == null || !probe(node, root, mode)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if we were interrupted
+     */
+    private static boolean probe(Node node, FilePath root, FirstRemoteOperation.ProbeMode mode) {
+        FirstRemoteOperation operation = new FirstRemoteOperation(node.getNodeName(), FirstConfiguration.get().getProbeCacheTtlMillis(), mode);
+        Future<FirstJavaVersion> future = null;
+        FirstJavaVersion found = null;
+        boolean interrupted = false;
+        long start = System.nanoTime();
+        try {
+            future = root.actAsync(operation);
+            //The answer itself is not needed, the agent has cached it
+            found = future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            LOGGER.log(Level.FINE, "No prewarm answer from {0}", node.getNodeName());
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.FINE, "Prewarm of " + node.getNodeName() + " failed", e.getCause());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Prewarm of " + node.getNodeName() + " failed", e);
+        } catch (InterruptedException e) {
+            //Shutting down, which says nothing about the node
+            interrupted = true;
+            if(future != null) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+        } finally {
+            if(!interrupted) {
+                long nanos = System.nanoTime() - start;
+                FirstMetrics.get().recordProbe(node.getNodeName(), nanos, FirstMetrics.outcomeOf(found));
+                FirstProbeGuard.get().recordUnguarded(node.getNodeName(), found, nanos, TIMEOUT_MILLIS);
+            }
+        }
+        return !interrupted;
+    }
+
+    /**
+     * Jenkins tells us when nodes come online.
+     */
+    @Extension
+    public static class ComputerListenerImpl extends ComputerListener {
+
+        @Override
+        public void onOnline(Computer c, TaskListener listener) throws IOException, InterruptedException {
+            Node node = c.getNode();
+            if(node != null) {
+                //A node that reconnects gets a fresh chance
+                FirstProbeGuard.get().reset(node.getNodeName());
+                submit(node);
+            }
+        }
+    }
+}
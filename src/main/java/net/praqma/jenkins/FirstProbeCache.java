@@ -0,0 +1,210 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small cache of probe results, living in the JVM that executes the {@link FirstRemoteOperation}.
+ *
+ * When the operation is sent to a slave, this class is loaded by the class loader of the remoting channel, so the
+ * static instance survives for as long as the slave stays connected. Asking the same slave for its java version over
+ * and over again then only costs a few file system lookups, instead of forking a new java process each time.
+ *
+ * Entries are keyed on the node and the java installation. An entry is discarded when it is older than the time to
+ * live, or when the java executable has been replaced, which we detect from its canonical path and modification time.
+ * The least recently used entries are evicted when the cache is full.
+ *
+ * @author Praqma
+ */
+public final class FirstProbeCache {
+
+    /**
+     * Maximum number of entries kept in one JVM. A slave rarely has more than a handful of java installations. Set
+     * the system property net.praqma.jenkins.FirstProbeCache.maxEntries on the JVM for more.
+     */
+    static final int MAX_ENTRIES = Integer.getInteger(FirstProbeCache.class.getName() + ".maxEntries", 64);
+
+    private static final FirstProbeCache INSTANCE = new FirstProbeCache();
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private FirstProbeCache() {
+    }
+
+    /**
+     * @return the cache of the JVM we are currently running in
+     */
+    public static FirstProbeCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates the cache key for a node, a probe mode and a java executable.
+     *
+     * @param nodeName the name of the node, the empty string for master
+     * @param mode the way the java installation is probed
+     * @param java the java executable, or null if none could be found
+     * @return the key
+     */
+    public static String key(String nodeName, FirstRemoteOperation.ProbeMode mode, File java) {
+        return (nodeName == null ? "" : nodeName) + "|" + mode + "|" + (java == null ? "" : java.getPath());
+    }
+
+    /**
+     * Looks up a cached value.
+     *
+     * @param key the key created by {@link #key(String, FirstRemoteOperation.ProbeMode, File)}
+     * @param java the java executable the value was found with
+     * @param ttlMillis the maximum age of the value in milliseconds
+     * @return the cached value, or null if there is no valid entry
+     */
+    public synchronized FirstJavaVersion get(String key, File java, long ttlMillis) {
+        Entry entry = entries.get(key);
+        if(entry == null) {
+            return null;
+        }
+        if(System.currentTimeMillis() - entry.created > ttlMillis || !entry.stamp.equals(Stamp.of(java))) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Adds a value to the cache.
+     *
+     * @param key the key created by {@link #key(String, FirstRemoteOperation.ProbeMode, File)}
+     * @param java the java executable the value was found with
+     * @param value the value to cache
+     */
+    public synchronized void put(String key, File java, FirstJavaVersion value) {
+        entries.put(key, new Entry(value, Stamp.of(java)));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Finds the java executable the same way the shell would, by searching the directories on the PATH.
+     *
+     * @param javaHome a specific java installation to use, or null to search the PATH
+     * @return the java executable, or null if none could be found
+     */
+    public static File resolveJava(String javaHome) {
+        String[] names = File.separatorChar == '\\' ? new String[] { "java.exe", "java" } : new String[] { "java" };
+        if(javaHome != null && javaHome.length() > 0) {
+            return find(new File(javaHome, "bin"), names);
+        }
+
+        String path = System.getenv("PATH");
+        if(path == null) {
+            return null;
+        }
+        for(String dir : path.split(File.pathSeparator)) {
+            if(dir.length() > 0) {
+                File java = find(new File(dir), names);
+                if(java != null) {
+                    return java;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static File find(File dir, String[] names) {
+        for(String name : names) {
+            File candidate = new File(dir, name);
+            if(candidate.isFile()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static final class Entry {
+        final FirstJavaVersion value;
+        final Stamp stamp;
+        final long created = System.currentTimeMillis();
+
+        Entry(FirstJavaVersion value, Stamp stamp) {
+            this.value = value;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * Identifies a java installation on disk. If alternatives, or a symlink, points java somewhere else, the canonical
+     * path changes. If the installation is upgraded in place, the modification time changes.
+     */
+    private static final class Stamp {
+        final String canonicalPath;
+        final long lastModified;
+
+        Stamp(String canonicalPath, long lastModified) {
+            this.canonicalPath = canonicalPath;
+            this.lastModified = lastModified;
+        }
+
+        static Stamp of(File java) {
+            if(java == null) {
+                return new Stamp("", 0);
+            }
+            File canonical;
+            try {
+                canonical = java.getCanonicalFile();
+            } catch (IOException e) {
+                canonical = java.getAbsoluteFile();
+            }
+            return new Stamp(canonical.getPath(), canonical.lastModified());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Stamp)) {
+                return false;
+            }
+            Stamp other = (Stamp) obj;
+            return canonicalPath.equals(other.canonicalPath) && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return canonicalPath.hashCode() * 31 + (int) (lastModified ^ (lastModified >>> 32));
+        }
+    }
+}
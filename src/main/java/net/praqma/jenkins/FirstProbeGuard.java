@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.ComputerListener;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+
+/**
+ * Protects builds against nodes that answer slowly or not at all.
+ *
+ * For every node the guard remembers the last java version found, and how many probes in a row failed or were slow.
+ * A probe is slow when it takes more than half of its deadline. After {@link FirstConfiguration#getBreakerFailures()}
+ * such probes the breaker of the node opens, and the node is not probed for
+ * {@link FirstConfiguration#getBreakerCooldownMinutes()} minutes. After that a single probe is let through, and the
+ * breaker closes again if it goes well.
+ *
+ * A node that is not probed, or does not answer in time, gets its last known java version instead, and the info is
+ * marked stale in the {@link FirstBuildAction}.
+ *
+ * What the guard knows about a node is forgotten when the node is removed from Jenkins.
+ *
+ * @author Praqma
+ */
+public class FirstProbeGuard {
+
+    private static final FirstProbeGuard INSTANCE = new FirstProbeGuard();
+
+    private final ConcurrentMap<String, NodeState> nodes = new ConcurrentHashMap<String, NodeState>();
+
+    /**
+     * Only for tests, everything else uses {@link #get()}.
+     */
+    FirstProbeGuard() {
+    }
+
+    public static FirstProbeGuard get() {
+        return INSTANCE;
+    }
+
+    private NodeState state(String node) {
+        NodeState state = nodes.get(node);
+        if(state == null) {
+            nodes.putIfAbsent(node, new NodeState());
+            state = nodes.get(node);
+        }
+        return state;
+    }
+
+    /**
+     * Asks whether a node may be probed. When the breaker is open and the cool down has passed, the first caller
+     * is allowed to try, the others are not until that probe is recorded.
+     *
+     * @param node the node name, the empty string for master
+     * @return true if the node may be probed
+     */
+    public boolean allow(String node) {
+        NodeState state = state(node);
+        synchronized (state) {
+            if(state.openUntil == 0) {
+                return true;
+            }
+            if(now() < state.openUntil || state.trial) {
+                FirstMetrics.get().recordGuard(node, "skipped");
+                return false;
+            }
+            state.trial = true;
+            return true;
+        }
+    }
+
+    /**
+     * Records the outcome of a probe that was allowed.
+     *
+     * @param node the node name, the empty string for master
+     * @param version the java version found, or null if the probe failed or timed out
+     * @param nanos how long the probe took
+     * @param deadlineMillis the deadline of the probe
+     */
+    public void record(String node, FirstJavaVersion version, long nanos, long deadlineMillis) {
+        record(node, version, nanos, deadlineMillis, true);
+    }
+
+    /**
+     * Records the outcome of a probe that did not ask to be allowed, like the one of {@link FirstPrewarm}. It counts
+     * like any other probe, but leaves the trial of a half open breaker to the probe that was let through.
+     *
+     * @param node the node name, the empty string for master
+     * @param version the java version found, or null if the probe failed or timed out
+     * @param nanos how long the probe took
+     * @param deadlineMillis the deadline of the probe
+     */
+    public void recordUnguarded(String node, FirstJavaVersion version, long nanos, long deadlineMillis) {
+        record(node, version, nanos, deadlineMillis, false);
+    }
+
+    private void record(String node, FirstJavaVersion version, long nanos, long deadlineMillis, boolean allowed) {
+        FirstConfiguration configuration = FirstConfiguration.get();
+        NodeState state = state(node);
+        synchronized (state) {
+            if(allowed) {
+                state.trial = false;
+            }
+            if(version != null && !version.isUnknown()) {
+                state.lastKnown = version;
+            }
+            boolean slow = TimeUnit.NANOSECONDS.toMillis(nanos) > deadlineMillis / 2;
+            if(version != null && !slow) {
+                state.failures = 0;
+                state.openUntil = 0;
+                return;
+            }
+            state.failures++;
+            int threshold = configuration.getBreakerFailures();
+            if(threshold > 0 && state.failures >= threshold) {
+                if(state.openUntil == 0) {
+                    FirstMetrics.get().recordGuard(node, "opened");
+                }
+                state.openUntil = now() + TimeUnit.MINUTES.toMillis(configuration.getBreakerCooldownMinutes());
+            }
+        }
+    }
+
+    /**
+     * Forgets a probe that was allowed, but given up on before it answered, without counting it as a failure. Lets
+     * the next caller try, if this one was the trial of an open breaker.
+     *
+     * @param node the node name, the empty string for master
+     */
+    public void release(String node) {
+        NodeState state = state(node);
+        synchronized (state) {
+            state.trial = false;
+        }
+    }
+
+    /**
+     * @param node the node name, the empty string for master
+     * @return the last java version found on the node, or null if none was ever found
+     */
+    public FirstJavaVersion lastKnown(String node) {
+        NodeState state = nodes.get(node);
+        if(state == null) {
+            return null;
+        }
+        synchronized (state) {
+            return state.lastKnown;
+        }
+    }
+
+    /**
+     * The answer to use for a node that was not probed or did not answer.
+     *
+     * @param node the node name, the empty string for master
+     * @return the last known java version without facts, or null if none was ever found
+     */
+    public FirstFacts fallback(String node) {
+        FirstJavaVersion version = lastKnown(node);
+        if(version == null) {
+            return null;
+        }
+        FirstMetrics.get().recordGuard(node, "stale");
+        return new FirstFacts(version, new String[0], new String[0]);
+    }
+
+    /**
+     * Forgets the failures of a node, for instance when it comes online again.
+     *
+     * @param node the node name, the empty string for master
+     */
+    public void reset(String node) {
+        NodeState state = nodes.get(node);
+        if(state != null) {
+            synchronized (state) {
+                state.failures = 0;
+                state.openUntil = 0;
+                state.trial = false;
+            }
+        }
+    }
+
+    /**
+     * @return the current time in milliseconds, tests move it past the cool down
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Forgets every node that is not in the given set.
+     *
+     * @param names the names of the nodes to keep, the empty string for master
+     */
+    public void retain(Set<String> names) {
+        nodes.keySet().retainAll(names);
+    }
+
+    /**
+     * @return the names of the nodes Jenkins has, the empty string for master
+     */
+    static Set<String> nodeNames() {
+        Set<String> names = new HashSet<String>();
+        names.add("");
+        for(Node node : Jenkins.getInstance().getNodes()) {
+            names.add(node.getNodeName());
+        }
+        return names;
+    }
+
+    /**
+     * Jenkins tells us when nodes are added or removed, then the guard and the {@link FirstMetrics} forget the
+     * nodes that are gone, so neither grows with every agent that ever existed.
+     */
+    @Extension
+    public static class ComputerListenerImpl extends ComputerListener {
+
+        @Override
+        public void onConfigurationChange() {
+            Set<String> names = nodeNames();
+            get().retain(names);
+            FirstMetrics.get().retainNodes(names);
+        }
+    }
+
+    private static final class NodeState {
+        private FirstJavaVersion lastKnown;
+        private int failures;
+        /**
+         * When the breaker is open, the time it may be tried again, otherwise 0.
+         */
+        private long openUntil;
+        /**
+         * True while the single probe after the cool down is running.
+         */
+        private boolean trial;
+    }
+}
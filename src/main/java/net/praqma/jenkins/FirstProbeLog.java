@@ -0,0 +1,385 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.model.Item;
+import hudson.model.Job;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An append only binary log of the infos of all builds of a project, used when {@link FirstConfiguration#getStorage()}
+ * is {@link FirstConfiguration.Storage#PROBE_LOG}.
+ *
+ * The log lives next to the project's config.xml in two files:
+ * <ul>
+ * <li>first-probes.log holds one record of {@link #RECORD_SIZE} bytes per info: build number, node, java version
+ * and random number, each a four byte int. Node and java version are positions in the dictionary, -1 for no node.
+ * The highest bit of the java version, {@link #STALE}, is set when the version is the last known one of the node.</li>
+ * <li>first-probes.dict holds the dictionary, the strings in the order they were first seen.</li>
+ * </ul>
+ *
+ * Records are read through a {@link MappedByteBuffer}, so reading the infos of many builds is a sequential read of
+ * one file, instead of parsing a build.xml per build. A {@link FirstBuildAction} stored in the log only keeps the
+ * position of its first record.
+ *
+ * @author Praqma
+ */
+public final class FirstProbeLog {
+
+    static final String LOG_FILE = "first-probes.log";
+    static final String DICTIONARY_FILE = "first-probes.dict";
+    static final int RECORD_SIZE = 16;
+    /**
+     * Set in the java version of a record when the version is stale.
+     */
+    static final int STALE = 0x80000000;
+
+    /**
+     * The open logs. A log points back to its project, so the entries are removed through
+     * {@link FirstBuildIndex.ItemListenerImpl} when a project is deleted or reloaded, and when a project object is
+     * replaced by another with the same name.
+     */
+    private static final Map<Job<?, ?>, FirstProbeLog> LOGS = new HashMap<Job<?, ?>, FirstProbeLog>();
+
+    /**
+     * Receives the records read from the log.
+     */
+    public interface Visitor {
+        /**
+         * @param buildNumber the number of the build the info belongs to
+         * @param node the node name, or null
+         * @param javaVersion the java version
+         * @param randomNumber the random number
+         * @param stale true if the java version is the last known one, see {@link FirstProbeGuard}
+         */
+        void visit(int buildNumber, String node, String javaVersion, int randomNumber, boolean stale);
+    }
+
+    /**
+     * The files are looked up through the project every time, so the log follows a renamed or moved project.
+     */
+    private final Job<?, ?> job;
+    private final List<String> dictionary = new ArrayList<String>();
+    private final Map<String, Integer> dictionaryIds = new HashMap<String, Integer>();
+    /**
+     * Where the records of each build are: build number to first record and number of records.
+     */
+    private final TreeMap<Integer, long[]> builds = new TreeMap<Integer, long[]>();
+    private long records;
+
+    private FirstProbeLog(Job<?, ?> job) {
+        this.job = job;
+    }
+
+    /**
+     * Gets the log of a project, opening it the first time.
+     *
+     * @param job the project
+     * @return the log, which may be empty
+     * @throws IOException if the files cannot be read
+     */
+    public static FirstProbeLog of(Job<?, ?> job) throws IOException {
+        synchronized (LOGS) {
+            FirstProbeLog log = LOGS.get(job);
+            if(log == null) {
+                Iterator<Job<?, ?>> jobs = LOGS.keySet().iterator();
+                while(jobs.hasNext()) {
+                    if(jobs.next().getFullName().equals(job.getFullName())) {
+                        jobs.remove();
+                    }
+                }
+                log = new FirstProbeLog(job);
+                log.open();
+                LOGS.put(job, log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * @param job the project
+     * @return true if the project has a log, without opening it
+     */
+    public static boolean exists(Job<?, ?> job) {
+        synchronized (LOGS) {
+            return LOGS.containsKey(job) || new File(job.getRootDir(), LOG_FILE).exists();
+        }
+    }
+
+    /**
+     * Closes the logs of a deleted project, or of the projects in a deleted folder.
+     *
+     * @param item the deleted item
+     */
+    static void onDeleted(Item item) {
+        String prefix = item.getFullName() + "/";
+        synchronized (LOGS) {
+            Iterator<Job<?, ?>> jobs = LOGS.keySet().iterator();
+            while(jobs.hasNext()) {
+                Job<?, ?> job = jobs.next();
+                if(job == item || job.getFullName().startsWith(prefix)) {
+                    jobs.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes every log, after Jenkins has loaded or reloaded its projects.
+     */
+    static void onLoaded() {
+        synchronized (LOGS) {
+            LOGS.clear();
+        }
+    }
+
+    private File logFile() {
+        return new File(job.getRootDir(), LOG_FILE);
+    }
+
+    private File dictionaryFile() {
+        return new File(job.getRootDir(), DICTIONARY_FILE);
+    }
+
+    private void open() throws IOException {
+        File dictionaryFile = dictionaryFile();
+        File logFile = logFile();
+        if(dictionaryFile.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dictionaryFile)));
+            try {
+                while(true) {
+                    intern(in.readUTF());
+                }
+            } catch (EOFException e) {
+                //The end of the dictionary
+            } finally {
+                in.close();
+            }
+        }
+
+        if(logFile.exists()) {
+            RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+            try {
+                //A record cut short by a crash is dropped, the build it belonged to falls back to build.xml
+                long length = file.length() - file.length() % RECORD_SIZE;
+                file.setLength(length);
+                records = length / RECORD_SIZE;
+            } finally {
+                file.close();
+            }
+            scan(0, records, new Visitor() {
+                private long position;
+
+                @Override
+                public void visit(int buildNumber, String node, String javaVersion, int randomNumber, boolean stale) {
+                    long[] location = builds.get(buildNumber);
+                    if(location == null) {
+                        builds.put(buildNumber, new long[] { position, 1 });
+                    } else {
+                        location[1]++;
+                    }
+                    position++;
+                }
+            });
+        }
+    }
+
+    private int intern(String value) {
+        Integer id = dictionaryIds.get(value);
+        if(id == null) {
+            id = dictionary.size();
+            dictionary.add(value);
+            dictionaryIds.put(value, id);
+        }
+        return id;
+    }
+
+    /**
+     * Appends the infos of a build.
+     *
+     * @param buildNumber the number of the build
+     * @param action the action of the build
+     * @return the position of the first record written
+     * @throws IOException if the log cannot be written
+     */
+    public long append(int buildNumber, FirstBuildAction action) throws IOException {
+        //Copy the infos first, so the log is only locked for the writing
+        String[] nodes;
+        String[] versions;
+        int[] numbers;
+        boolean[] stale;
+        synchronized (action) {
+            int count = action.size();
+            nodes = new String[count];
+            versions = new String[count];
+            numbers = new int[count];
+            stale = new boolean[count];
+            for(int i = 0; i < count; i++) {
+                nodes[i] = action.getNode(i);
+                versions[i] = action.getJavaVersion(i);
+                numbers[i] = action.getRandomNumber(i);
+                stale[i] = action.isStale(i);
+            }
+        }
+
+        synchronized (this) {
+            List<String> added = new ArrayList<String>();
+            ByteBuffer buffer = ByteBuffer.allocate(numbers.length * RECORD_SIZE);
+            for(int i = 0; i < numbers.length; i++) {
+                int nodeId = nodes[i] == null ? -1 : internNew(nodes[i], added);
+                int versionId = internNew(versions[i], added) | (stale[i] ? STALE : 0);
+                buffer.putInt(buildNumber).putInt(nodeId).putInt(versionId).putInt(numbers[i]);
+            }
+            buffer.flip();
+
+            //The dictionary first, a record must never refer to a string that is not on disk
+            if(!added.isEmpty()) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dictionaryFile(), true)));
+                try {
+                    for(String value : added) {
+                        out.writeUTF(value);
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+
+            FileChannel channel = new FileOutputStream(logFile(), true).getChannel();
+            try {
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                channel.close();
+            }
+
+            long first = records;
+            records += numbers.length;
+            builds.put(buildNumber, new long[] { first, numbers.length });
+            return first;
+        }
+    }
+
+    private int internNew(String value, List<String> added) {
+        Integer id = dictionaryIds.get(value);
+        if(id == null) {
+            added.add(value);
+            return intern(value);
+        }
+        return id;
+    }
+
+    /**
+     * @param buildNumber a build number
+     * @return true if the log holds the infos of the build
+     */
+    public synchronized boolean contains(int buildNumber) {
+        return builds.containsKey(buildNumber);
+    }
+
+    /**
+     * Reads the records of one build.
+     *
+     * @param buildNumber the build number
+     * @param visitor receives the records
+     * @return false if the log does not hold the build
+     * @throws IOException if the log cannot be read
+     */
+    public boolean read(int buildNumber, Visitor visitor) throws IOException {
+        long[] location;
+        synchronized (this) {
+            location = builds.get(buildNumber);
+        }
+        if(location == null) {
+            return false;
+        }
+        scan(location[0], location[1], visitor);
+        return true;
+    }
+
+    /**
+     * Reads a range of records, in the order they were written.
+     *
+     * @param first the position of the first record
+     * @param count the number of records
+     * @param visitor receives the records
+     * @throws IOException if the log cannot be read
+     */
+    public void scan(long first, long count, Visitor visitor) throws IOException {
+        if(count <= 0) {
+            return;
+        }
+        List<String> strings;
+        synchronized (this) {
+            //The dictionary only grows, so a copy of the current one covers every record written so far
+            strings = new ArrayList<String>(dictionary);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(logFile(), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            //A mapping is limited to 2GB, so very long logs are read in chunks
+            long chunk = (Integer.MAX_VALUE / RECORD_SIZE);
+            for(long done = 0; done < count; done += chunk) {
+                long n = Math.min(chunk, count - done);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, (first + done) * RECORD_SIZE, n * RECORD_SIZE);
+                for(long i = 0; i < n; i++) {
+                    int buildNumber = buffer.getInt();
+                    int nodeId = buffer.getInt();
+                    int versionId = buffer.getInt();
+                    int randomNumber = buffer.getInt();
+                    visitor.visit(buildNumber, nodeId < 0 ? null : strings.get(nodeId), strings.get(versionId & ~STALE),
+                            randomNumber, (versionId & STALE) != 0);
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return the number of records in the log
+     */
+    public synchronized long size() {
+        return records;
+    }
+}
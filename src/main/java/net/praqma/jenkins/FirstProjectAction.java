@@ -25,7 +25,21 @@ package net.praqma.jenkins;
 
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Item;
 import hudson.model.ProminentProjectAction;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import java.awt.Color;
+import java.io.IOException;
+import java.io.PrintWriter;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 /**
  * Class implementing actionable and ProminentProjectAction.
@@ -39,6 +53,12 @@ import hudson.model.ProminentProjectAction;
  */
 public class FirstProjectAction implements ProminentProjectAction{
 
+    /**
+     * Number of builds in a page of the export, if the client does not ask for something else.
+     */
+    static final int EXPORT_DEFAULT_LIMIT = 100;
+    static final int EXPORT_MAX_LIMIT = 1000;
+
     public final AbstractProject<?,?> project;
     
     /**
@@ -70,18 +90,175 @@ public class FirstProjectAction implements ProminentProjectAction{
     }
     
     /**
+     * The lookup goes through the {@link FirstBuildIndex} of the project, so we do not have to load older builds
+     * from disk to find the one with an action.
      * 
      * @return the last build action associated with this project. 
      */
     public FirstBuildAction getLastBuildAction() {
-        for( AbstractBuild<?, ?> b = project.getLastCompletedBuild() ; b != null ; b = b.getPreviousBuild() ) {
-            FirstBuildAction action = b.getAction( FirstBuildAction.class );
-            if( action != null ) {
-                return action;
+        return FirstBuildIndex.of(project).getLastBuildAction();
+    }
+
+    /**
+     * Used by the views. The html is rendered once per completed build, not once per page view.
+     *
+     * @return the html of the last build action, or the empty string
+     */
+    public String getSummary() {
+        return FirstBuildIndex.of(project).getSummary();
+    }
+
+    /**
+     * @return the rolling statistics of the last builds
+     */
+    public FirstTrend getTrend() {
+        return FirstBuildIndex.of(project).getTrend();
+    }
+
+    /**
+     * The trend graph, drawn from the last 100 builds of the {@link FirstTrend}. Stapler
+     * maps this getter to the url 'trendGraph', and the {@link Graph} answers 'trendGraph/png'.
+     *
+     * @return the graph
+     */
+    public Graph getTrendGraph() {
+        final FirstTrend trend = getTrend();
+        return new Graph(trend.getLastModified(), 500, 200) {
+            @Override
+            protected JFreeChart createGraph() {
+                DataSetBuilder<String, Integer> data = new DataSetBuilder<String, Integer>();
+                for(FirstTrend.Record record : trend.getRecords(FirstTrend.WINDOWS[1])) {
+                    data.add(record.getVersionCount(), "Java versions", record.getNumber());
+                    data.add(record.getEven(), "Even numbers", record.getNumber());
+                    data.add(record.getTotal() - record.getEven(), "Odd numbers", record.getNumber());
+                }
+                JFreeChart chart = ChartFactory.createLineChart(null, "Build", "Count", data.build(),
+                        PlotOrientation.VERTICAL, true, true, false);
+                chart.setBackgroundPaint(Color.white);
+                CategoryPlot plot = chart.getCategoryPlot();
+                plot.setBackgroundPaint(Color.white);
+                plot.setRangeGridlinePaint(Color.lightGray);
+                return chart;
+            }
+        };
+    }
+
+    /**
+     * Exports the info of a range of builds as JSON lines, at the url 'firstprojectaction/export'. Every info is a
+     * line like {"build":42,"node":"slave1","javaVersion":"1.8.0_292","randomNumber":7}. A java version that is the last
+     * known one, see {@link FirstProbeGuard}, adds "stale":true.
+     *
+     * The parameters 'from' and 'to' select the build numbers, both included. At most 'limit' builds are examined per
+     * request, counting the builds without an action too, so a page below {@link FirstBuildIndex#getUnscannedBelow()}
+     * loads no more builds than a page above it. The last line is {"next":N}, where N is the 'cursor' to pass to get
+     * the next page, or null when there are no more builds. A page may hold fewer than 'limit' builds, or none. Lines are written as the builds are read, nothing is collected first.
+     * Builds kept in the {@link FirstProbeLog} of the project are read from the log, without loading the build.
+     *
+     * @param req the request
+     * @param rsp the response
+     * @throws IOException
+     */
+    public void doExport(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        project.checkPermission(Item.READ);
+        int from = intParameter(req, "from", 1);
+        int to = intParameter(req, "to", Integer.MAX_VALUE);
+        int cursor = Math.max(from, intParameter(req, "cursor", from));
+        int limit = Math.min(Math.max(1, intParameter(req, "limit", EXPORT_DEFAULT_LIMIT)), EXPORT_MAX_LIMIT);
+
+        rsp.setContentType("application/x-ndjson;charset=UTF-8");
+        PrintWriter out = rsp.getWriter();
+        FirstBuildIndex index = FirstBuildIndex.of(project);
+        FirstProbeLog log = FirstProbeLog.exists(project) ? FirstProbeLog.of(project) : null;
+        int examined = 0;
+        Integer number = nextCandidate(index, cursor, to);
+        while(number != null && examined < limit) {
+            examined++;
+            if(log != null && log.read(number, new LineWriter(out))) {
+                //Straight from the log, the build is not loaded
+                out.flush();
+                number = nextCandidate(index, number + 1, to);
+                continue;
+            }
+            AbstractBuild<?, ?> build = project.getBuildByNumber(number);
+            FirstBuildAction action = build != null && !build.isBuilding() ? build.getAction(FirstBuildAction.class) : null;
+            if(action != null) {
+                writeAction(out, number, action);
+                out.flush();
+            }
+            number = nextCandidate(index, number + 1, to);
+        }
+
+        JSONObject next = new JSONObject();
+        //json-lib removes keys that are put with a null value
+        next.put("next", number != null ? number : JSONNull.getInstance());
+        out.println(next.toString());
+        out.flush();
+    }
+
+    private static void writeAction(PrintWriter out, int number, FirstBuildAction action) {
+        LineWriter lines = new LineWriter(out);
+        synchronized (action) {
+            for(int i = 0; i < action.size(); i++) {
+                lines.line(number, action.getNode(i), action.getJavaVersion(i), action.getRandomNumber(i), action.isStale(i));
+            }
+        }
+    }
+
+    /**
+     * Writes one JSON line per info, for infos read from a build as well as from a {@link FirstProbeLog}.
+     */
+    private static final class LineWriter implements FirstProbeLog.Visitor {
+        private final PrintWriter out;
+
+        LineWriter(PrintWriter out) {
+            this.out = out;
+        }
+
+        @Override
+        public void visit(int buildNumber, String node, String javaVersion, int randomNumber, boolean stale) {
+            line(buildNumber, node, javaVersion, randomNumber, stale);
+        }
+
+        void line(int buildNumber, String node, String javaVersion, int randomNumber, boolean stale) {
+            JSONObject line = new JSONObject();
+            line.put("build", buildNumber);
+            line.put("node", node != null ? node : JSONNull.getInstance());
+            line.put("javaVersion", javaVersion);
+            line.put("randomNumber", randomNumber);
+            if(stale) {
+                line.put("stale", true);
+            }
+            out.println(line.toString());
+        }
+    }
+
+    /**
+     * Finds the next build that may have an action. Above {@link FirstBuildIndex#getUnscannedBelow()} only the indexed
+     * builds are candidates, below it every build is.
+     */
+    private Integer nextCandidate(FirstBuildIndex index, int number, int to) {
+        Integer candidate = null;
+        if(number < index.getUnscannedBelow()) {
+            AbstractBuild<?, ?> build = project.getNearestBuild(number);
+            if(build != null && build.getNumber() < index.getUnscannedBelow()) {
+                candidate = build.getNumber();
             }
         }
+        if(candidate == null) {
+            candidate = index.ceiling(Math.max(number, index.getUnscannedBelow()));
+        }
+        return candidate != null && candidate <= to ? candidate : null;
+    }
 
-        return null;
+    private static int intParameter(StaplerRequest req, String name, int defaultValue) {
+        String value = req.getParameter(name);
+        if(value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
-  
 }
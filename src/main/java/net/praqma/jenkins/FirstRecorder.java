@@ -49,6 +49,8 @@ import org.kohsuke.stapler.DataBoundConstructor;
  * Our example demonstrates in a very simple way how the post build step can be used to set the overall result of a given build.
  * 
  * Our example recorder requires the user to enter a string, that must be contained as a part build steps in order to be considered stable.
+ *
+ * The result is decided by the {@link FirstVerdictRule}s, of which the plugin itself has one: at least one random number must be even.
  * 
  * @author Praqma
  */
@@ -109,12 +111,20 @@ public class FirstRecorder extends Recorder {
      */
     @Override
     public boolean perform(Build<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        long start = System.nanoTime();
         FirstBuildAction action = build.getAction(FirstBuildAction.class);
         if(action != null) {
-            if(!action.hasEvenRandomNumber()) {
-                build.setResult(Result.UNSTABLE);
+            //Probes sent ahead of time by the builder must be in before the rules look at the action
+            action.collectPending(listener.getLogger());
+            //setResult can only make the result worse, so the strictest rule wins
+            for(FirstVerdictRule rule : FirstVerdictRule.all()) {
+                Result result = rule.evaluate(action);
+                if(result != null) {
+                    build.setResult(result);
+                }
             }
         }
+        FirstMetrics.get().recordRecorder(build.getBuiltOnStr(), System.nanoTime() - start);
         
         return true;
     }
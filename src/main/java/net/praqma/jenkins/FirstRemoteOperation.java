@@ -36,31 +36,108 @@ import net.praqma.util.execute.CommandLine;
  *
  * The class can have a constructor with parameters. These parameters are serialized and available
  * on the remote.
+ *
+ * Forking a java process is expensive, so by default we look the version up in the 'release' file of the
+ * java installation instead, and only start 'java -version' when there is no such file. The result is kept in
+ * the {@link FirstProbeCache} of the JVM running the operation.
  * 
  * @author praqma
  * 
  */
-public class FirstRemoteOperation implements FilePath.FileCallable<String>  {
+public class FirstRemoteOperation implements FilePath.FileCallable<FirstJavaVersion>  {
+
+    /**
+     * The ways we can find the java version on the remote.
+     */
+    public enum ProbeMode {
+        RELEASE_FILE("Read the release file of the java found on the PATH"),
+        SYSTEM_PROPERTIES("Use the JVM running the slave agent"),
+        PROCESS("Run 'java -version'");
+
+        private final String displayName;
+
+        ProbeMode(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private final String nodeName;
+    private final long cacheTtlMillis;
+    private final ProbeMode mode;
+
+    public FirstRemoteOperation() {
+        this("", FirstConfiguration.DEFAULT_PROBE_CACHE_TTL_MINUTES * 60L * 1000L, ProbeMode.RELEASE_FILE);
+    }
+
+    /**
+     * @param nodeName the name of the node we are probing, used as part of the cache key
+     * @param cacheTtlMillis how long a cached result is valid, zero to always probe again
+     * @param mode how to find the java version
+     */
+    public FirstRemoteOperation(String nodeName, long cacheTtlMillis, ProbeMode mode) {
+        this.nodeName = nodeName;
+        this.cacheTtlMillis = cacheTtlMillis;
+        this.mode = mode;
+    }
     
     /**
      * This class implements {@link FilePath.FileCallable}. The invoke method is executed either on the master or the remote.
-     * The returned value MUST be {@link Serializable} if the task is ever going be executed remotely.
+     * The returned value MUST be {@link java.io.Serializable} if the task is ever going be executed remotely.
      * 
      * @param f the remote workspace (or null if not remote)
      * @param channel the remote channel (or null if not remote)
-     * @return a String containing information about the installed java version
+     * @return information about the installed java version
      * @throws IOException
      * @throws InterruptedException 
      */
     @Override
-    public String invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
-        String javaVersion = "Unknown";
-        //Read command line output into a list of strings.
-        List<String> standardOut = CommandLine.getInstance().run(" java -version" ).stdoutList;
-        if(standardOut.size() > 0) {
-            javaVersion = standardOut.get(0);
+    public FirstJavaVersion invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        //The slave JVM is already running, asking it is cheaper than any cache lookup
+        if(mode == ProbeMode.SYSTEM_PROPERTIES) {
+            return FirstJavaVersion.fromSystemProperties();
+        }
+
+        File java = FirstProbeCache.resolveJava(null);
+        String key = FirstProbeCache.key(nodeName, mode, java);
+        if(cacheTtlMillis > 0) {
+            FirstJavaVersion cached = FirstProbeCache.getInstance().get(key, java, cacheTtlMillis);
+            if(cached != null) {
+                return cached;
+            }
+        }
+
+        FirstJavaVersion javaVersion = null;
+        File home = FirstJavaVersion.homeOf(java);
+        if(mode == ProbeMode.RELEASE_FILE && home != null) {
+            javaVersion = FirstJavaVersion.fromReleaseFile(home);
+        }
+        if(javaVersion == null) {
+            javaVersion = runJavaVersion(home);
+        }
+
+        //Only remember real answers, a failed probe should be retried on the next build
+        if(cacheTtlMillis > 0 && !javaVersion.isUnknown()) {
+            FirstProbeCache.getInstance().put(key, java, javaVersion);
         }
         return javaVersion;
     }
-    
+
+    /**
+     * The fallback. Starts 'java -version', which writes to standard error, so we merge it into standard out.
+     */
+    private FirstJavaVersion runJavaVersion(File home) {
+        try {
+            //Read command line output into a list of strings.
+            List<String> output = CommandLine.getInstance().run(" java -version", null, true, false).stdoutList;
+            return FirstJavaVersion.fromVersionOutput(output, home);
+        } catch (RuntimeException e) {
+            //CommandLine throws unchecked exceptions if java is not found, or exits abnormally
+            return FirstJavaVersion.UNKNOWN;
+        }
+    }
+
 }
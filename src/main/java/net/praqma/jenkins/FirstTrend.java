@@ -0,0 +1,366 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.model.Result;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rolling statistics of the last builds of a project, kept by the {@link FirstBuildIndex}.
+ *
+ * When a build with a {@link FirstBuildAction} completes, a small record of it is added here: the number of infos,
+ * how many had an even random number, whether the build ended up unstable, and the java versions it saw.
+ * The last {@link #CAPACITY} records are kept, and for each of the {@link #WINDOWS} the sums are updated by adding
+ * the new record and subtracting the one that falls out of the window. Showing the trend therefore costs the same
+ * whether the project has ten builds or ten thousand, and no build is ever loaded to do it.
+ *
+ * Deleting a build does not change the trend, it describes what happened, not what is left.
+ *
+ * @author Praqma
+ */
+public final class FirstTrend {
+
+    public static final int[] WINDOWS = { 10, 100, 1000 };
+    static final int CAPACITY = 1000;
+
+    /**
+     * The java versions seen, each only once. Records refer to them by position.
+     */
+    private final List<String> versions = new ArrayList<String>();
+
+    /**
+     * The persisted form of the records, oldest first, see {@link Record#format()}.
+     */
+    private List<String> records = new ArrayList<String>();
+
+    private long lastModified;
+
+    private transient Map<String, Integer> versionIds;
+    private transient Record[] ring;
+    private transient int head;
+    private transient int count;
+    private transient Window[] windows;
+
+    public FirstTrend() {
+        restore();
+    }
+
+    /**
+     * Called by XStream after the fields have been read from disk.
+     */
+    private Object readResolve() {
+        restore();
+        return this;
+    }
+
+    private void restore() {
+        versionIds = new HashMap<String, Integer>();
+        for(int i = 0; i < versions.size(); i++) {
+            versionIds.put(versions.get(i), i);
+        }
+        ring = new Record[CAPACITY];
+        head = 0;
+        count = 0;
+        windows = new Window[WINDOWS.length];
+        for(int i = 0; i < WINDOWS.length; i++) {
+            windows[i] = new Window(WINDOWS[i]);
+        }
+        List<String> persisted = records != null ? records : new ArrayList<String>();
+        for(String record : persisted) {
+            push(Record.parse(record));
+        }
+    }
+
+    /**
+     * Adds a completed build.
+     *
+     * @param number the build number
+     * @param action the action of the build
+     * @param result the result of the build, may be null
+     */
+    public synchronized void add(int number, FirstBuildAction action, Result result) {
+        int[] seen;
+        int total;
+        int even;
+        synchronized (action) {
+            total = action.size();
+            even = action.getEvenCount();
+            List<Integer> ids = new ArrayList<Integer>();
+            for(int i = 0; i < total; i++) {
+                Integer id = intern(action.getJavaVersion(i));
+                if(!ids.contains(id)) {
+                    ids.add(id);
+                }
+            }
+            seen = new int[ids.size()];
+            for(int i = 0; i < seen.length; i++) {
+                seen[i] = ids.get(i);
+            }
+        }
+        push(new Record(number, total, even, result == Result.UNSTABLE, seen));
+        lastModified = System.currentTimeMillis();
+    }
+
+    private int intern(String version) {
+        Integer id = versionIds.get(version);
+        if(id == null) {
+            id = versions.size();
+            versions.add(version);
+            versionIds.put(version, id);
+        }
+        return id;
+    }
+
+    private void push(Record record) {
+        for(Window window : windows) {
+            if(window.builds == window.size) {
+                window.remove(recordAt(window.size - 1));
+            }
+        }
+        ring[head] = record;
+        head = (head + 1) % CAPACITY;
+        count = Math.min(count + 1, CAPACITY);
+        for(Window window : windows) {
+            window.add(record);
+        }
+    }
+
+    /**
+     * @param age 0 for the newest record
+     */
+    private Record recordAt(int age) {
+        return ring[(head - 1 - age + CAPACITY) % CAPACITY];
+    }
+
+    /**
+     * Updates the persisted form. Called by the index before it is saved.
+     */
+    synchronized void prepareSave() {
+        List<String> formatted = new ArrayList<String>(count);
+        for(int age = count - 1; age >= 0; age--) {
+            formatted.add(recordAt(age).format());
+        }
+        records = formatted;
+    }
+
+    /**
+     * @return the time of the last change, used by the graph for caching
+     */
+    public synchronized long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the number of builds in the trend, at most {@link #CAPACITY}
+     */
+    public synchronized int getBuildCount() {
+        return count;
+    }
+
+    /**
+     * @return the windows that have at least one build, smallest first
+     */
+    public synchronized List<Window> getWindows() {
+        List<Window> copies = new ArrayList<Window>();
+        for(Window window : windows) {
+            //The larger windows are only interesting once the smaller ones are full
+            if(window.builds > 0 && (copies.isEmpty() || count > copies.get(copies.size() - 1).size)) {
+                copies.add(window.copy());
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * @param n the maximum number of records
+     * @return the newest records, oldest first
+     */
+    public synchronized List<Record> getRecords(int n) {
+        int size = Math.min(n, count);
+        List<Record> newest = new ArrayList<Record>(size);
+        for(int age = size - 1; age >= 0; age--) {
+            newest.add(recordAt(age));
+        }
+        return newest;
+    }
+
+    /**
+     * A completed build, as it is remembered by the trend.
+     */
+    public static final class Record {
+        private final int number;
+        private final int total;
+        private final int even;
+        private final boolean unstable;
+        private final int[] versionIds;
+
+        Record(int number, int total, int even, boolean unstable, int[] versionIds) {
+            this.number = number;
+            this.total = total;
+            this.even = even;
+            this.unstable = unstable;
+            this.versionIds = versionIds;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getEven() {
+            return even;
+        }
+
+        public boolean isUnstable() {
+            return unstable;
+        }
+
+        public int getVersionCount() {
+            return versionIds.length;
+        }
+
+        /**
+         * @return the record as 'number total even unstable versionIds', like "42 300 151 0 0,1,3"
+         */
+        String format() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(number).append(' ').append(total).append(' ').append(even).append(' ').append(unstable ? 1 : 0).append(' ');
+            for(int i = 0; i < versionIds.length; i++) {
+                builder.append(i > 0 ? "," : "").append(versionIds[i]);
+            }
+            return builder.toString().trim();
+        }
+
+        static Record parse(String value) {
+            String[] parts = value.trim().split(" ");
+            int[] ids = new int[0];
+            if(parts.length > 4 && parts[4].length() > 0) {
+                String[] idParts = parts[4].split(",");
+                ids = new int[idParts.length];
+                for(int i = 0; i < idParts.length; i++) {
+                    ids[i] = Integer.parseInt(idParts[i]);
+                }
+            }
+            return new Record(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                    parts[3].equals("1"), ids);
+        }
+    }
+
+    /**
+     * The sums over the last {@link #getSize()} builds.
+     */
+    public final class Window {
+        private final int size;
+        private int builds;
+        private int total;
+        private int even;
+        private int unstable;
+        /**
+         * Number of builds in the window that saw each version, by position in the version list.
+         */
+        private int[] versionBuilds = new int[0];
+
+        Window(int size) {
+            this.size = size;
+        }
+
+        void add(Record record) {
+            builds++;
+            total += record.total;
+            even += record.even;
+            unstable += record.unstable ? 1 : 0;
+            for(int id : record.versionIds) {
+                if(id >= versionBuilds.length) {
+                    versionBuilds = Arrays.copyOf(versionBuilds, Math.max(id + 1, versionBuilds.length * 2));
+                }
+                versionBuilds[id]++;
+            }
+        }
+
+        void remove(Record record) {
+            builds--;
+            total -= record.total;
+            even -= record.even;
+            unstable -= record.unstable ? 1 : 0;
+            for(int id : record.versionIds) {
+                versionBuilds[id]--;
+            }
+        }
+
+        Window copy() {
+            Window copy = new Window(size);
+            copy.builds = builds;
+            copy.total = total;
+            copy.even = even;
+            copy.unstable = unstable;
+            copy.versionBuilds = versionBuilds.clone();
+            return copy;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getBuilds() {
+            return builds;
+        }
+
+        /**
+         * @return the percentage of random numbers that were even
+         */
+        public int getEvenPercentage() {
+            return total == 0 ? 0 : (int) Math.round(100.0 * even / total);
+        }
+
+        /**
+         * @return the percentage of builds that were unstable
+         */
+        public int getUnstablePercentage() {
+            return builds == 0 ? 0 : (int) Math.round(100.0 * unstable / builds);
+        }
+
+        /**
+         * @return the java versions seen in the window, with the number of builds that saw them
+         */
+        public Map<String, Integer> getVersions() {
+            Map<String, Integer> seen = new TreeMap<String, Integer>();
+            synchronized (FirstTrend.this) {
+                for(int id = 0; id < versionBuilds.length; id++) {
+                    if(versionBuilds[id] > 0) {
+                        seen.put(versions.get(id), versionBuilds[id]);
+                    }
+                }
+            }
+            return seen;
+        }
+    }
+}
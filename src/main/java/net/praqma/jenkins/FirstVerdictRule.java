@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Result;
+import jenkins.model.Jenkins;
+
+/**
+ * Decides the result of a build from its {@link FirstBuildAction}. This is an {@link ExtensionPoint}, so other
+ * plugins can add their own rules by extending this class and marking it with {@link Extension}.
+ *
+ * Rules should only use the aggregates of the action, like {@link FirstBuildAction#getEvenCount()}, which cost
+ * nothing to read, even when the action holds the answers of every node in a large farm.
+ *
+ * @author Praqma
+ */
+public abstract class FirstVerdictRule implements ExtensionPoint {
+
+    /**
+     * @param action the action of the build
+     * @return the result the build should at most have, or null if this rule has no opinion
+     */
+    public abstract Result evaluate(FirstBuildAction action);
+
+    /**
+     * @return all the rules known to Jenkins
+     */
+    public static ExtensionList<FirstVerdictRule> all() {
+        return Jenkins.getInstance().getExtensionList(FirstVerdictRule.class);
+    }
+
+    /**
+     * The rule of the example: a build without a single even random number is unstable.
+     */
+    @Extension
+    public static class EvenNumberRule extends FirstVerdictRule {
+
+        @Override
+        public Result evaluate(FirstBuildAction action) {
+            return action.hasEvenRandomNumber() ? null : Result.UNSTABLE;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import java.io.File;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loads a build.xml written by the first version of the plugin, where the action held a 'firstBuildInfo' list, and
+ * checks that it is read into the columns and written back in the new format.
+ *
+ * @author Praqma
+ */
+public class FirstBuildActionLegacyTest {
+
+    private static final String LEGACY_ACTION =
+            "<net.praqma.jenkins.FirstBuildAction>"
+            + "<firstBuildInfo>"
+            + info("1.7.0_55", 4)
+            + info("1.7.0_55", 7)
+            + info("1.8.0_20", 9)
+            + "</firstBuildInfo>"
+            + "</net.praqma.jenkins.FirstBuildAction>";
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void legacyListIsReadAndSavedInTheNewFormat() throws Exception {
+        FreeStyleProject project = r.createFreeStyleProject("first");
+        FreeStyleBuild build = r.buildAndAssertSuccess(project);
+        File buildXml = new File(build.getRootDir(), "build.xml");
+        String xml = FileUtils.readFileToString(buildXml, "UTF-8");
+        if(xml.contains("<actions/>")) {
+            xml = xml.replace("<actions/>", "<actions>" + LEGACY_ACTION + "</actions>");
+        } else {
+            xml = xml.replace("<actions>", "<actions>" + LEGACY_ACTION);
+        }
+        FileUtils.writeStringToFile(buildXml, xml, "UTF-8");
+
+        r.jenkins.reload();
+        FreeStyleBuild reloaded = reloaded();
+        assertLegacyInfos(reloaded.getAction(FirstBuildAction.class));
+
+        reloaded.save();
+        xml = FileUtils.readFileToString(buildXml, "UTF-8");
+        assertFalse(xml.contains("firstBuildInfo"));
+        assertTrue(xml.contains("<versions>"));
+
+        r.jenkins.reload();
+        assertLegacyInfos(reloaded().getAction(FirstBuildAction.class));
+    }
+
+    private static void assertLegacyInfos(FirstBuildAction action) {
+        assertNotNull(action);
+        synchronized (action) {
+            assertEquals(3, action.size());
+            for(int i = 0; i < action.size(); i++) {
+                //The first version did not know the node
+                assertNull(action.getNode(i));
+            }
+            assertEquals("1.7.0_55", action.getJavaVersion(0));
+            assertEquals("1.7.0_55", action.getJavaVersion(1));
+            assertEquals("1.8.0_20", action.getJavaVersion(2));
+            assertEquals(4, action.getRandomNumber(0));
+            assertEquals(7, action.getRandomNumber(1));
+            assertEquals(9, action.getRandomNumber(2));
+        }
+        assertTrue(action.hasEvenRandomNumber());
+        assertEquals(1, action.getEvenCount());
+        assertEquals(4, action.getMinRandomNumber());
+        assertEquals(9, action.getMaxRandomNumber());
+        assertEquals(2, action.getDistinctVersionCount());
+    }
+
+    private FreeStyleBuild reloaded() {
+        FreeStyleProject p = r.jenkins.getItemByFullName("first", FreeStyleProject.class);
+        assertNotNull(p);
+        FreeStyleBuild build = p.getBuildByNumber(1);
+        assertNotNull(build);
+        return build;
+    }
+
+    private static String info(String javaVersion, int randomNumber) {
+        return "<net.praqma.jenkins.FirstBuildAction_-FirstBuildInfo>"
+                + "<javaVersion>" + javaVersion + "</javaVersion>"
+                + "<randomNumber>" + randomNumber + "</randomNumber>"
+                + "</net.praqma.jenkins.FirstBuildAction_-FirstBuildInfo>";
+    }
+}
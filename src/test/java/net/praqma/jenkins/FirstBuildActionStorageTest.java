@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stores the infos of builds in side files, in full and as deltas, and reads them back after Jenkins has reloaded
+ * everything from disk.
+ *
+ * @author Praqma
+ */
+public class FirstBuildActionStorageTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private FreeStyleProject project;
+    private final Rows rows = new Rows();
+
+    @Before
+    public void setUp() throws IOException {
+        FirstConfiguration.get().setStorage(FirstConfiguration.Storage.SIDE_FILE);
+        project = r.createFreeStyleProject("first");
+        project.getBuildersList().add(rows);
+    }
+
+    @Test
+    public void fullAndDeltaAreReadBack() throws Exception {
+        List<String> first = infos(r.buildAndAssertSuccess(project));
+        rows.extra = "added";
+        List<String> second = infos(r.buildAndAssertSuccess(project));
+
+        String firstXml = buildXml(1);
+        String secondXml = buildXml(2);
+        assertFalse(firstXml.contains("<delta>"));
+        assertTrue(secondXml.contains("<delta>1 1</delta>"));
+        //Only the header is left in build.xml
+        assertFalse(secondXml.contains("<dictionary>"));
+        assertFalse(secondXml.contains("<versions>"));
+
+        r.jenkins.reload();
+        assertEquals(first, infos(reloaded(1)));
+        assertEquals(second, infos(reloaded(2)));
+    }
+
+    @Test
+    public void deltaSurvivesItsDeletedBase() throws Exception {
+        FreeStyleBuild base = r.buildAndAssertSuccess(project);
+        rows.extra = "added";
+        List<String> second = infos(r.buildAndAssertSuccess(project));
+        assertTrue(buildXml(2).contains("<delta>"));
+
+        base.delete();
+        //Rewritten in full while the base could still be read
+        assertFalse(buildXml(2).contains("<delta>"));
+
+        r.jenkins.reload();
+        assertEquals(second, infos(reloaded(2)));
+    }
+
+    @Test
+    public void buildsWithoutSideFileDoNotTouchTheNextBuild() throws Exception {
+        FirstConfiguration.get().setStorage(FirstConfiguration.Storage.BUILD_XML);
+        FreeStyleBuild inline = r.buildAndAssertSuccess(project);
+        FirstConfiguration.get().setStorage(FirstConfiguration.Storage.SIDE_FILE);
+        List<String> second = infos(r.buildAndAssertSuccess(project));
+        assertFalse(buildXml(2).contains("<delta>"));
+
+        inline.delete();
+        r.jenkins.reload();
+        assertEquals(second, infos(reloaded(2)));
+    }
+
+    private FreeStyleBuild reloaded(int number) {
+        FreeStyleProject p = r.jenkins.getItemByFullName("first", FreeStyleProject.class);
+        assertNotNull(p);
+        FreeStyleBuild build = p.getBuildByNumber(number);
+        assertNotNull(build);
+        return build;
+    }
+
+    private static List<String> infos(FreeStyleBuild build) {
+        FirstBuildAction action = build.getAction(FirstBuildAction.class);
+        assertNotNull(action);
+        List<String> infos = new ArrayList<String>();
+        synchronized (action) {
+            for(int i = 0; i < action.size(); i++) {
+                infos.add(action.getNode(i) + " " + action.getJavaVersion(i) + " " + action.getRandomNumber(i));
+            }
+        }
+        return infos;
+    }
+
+    private String buildXml(int number) throws IOException {
+        return FileUtils.readFileToString(new File(project.getBuildByNumber(number).getRootDir(), "build.xml"), "UTF-8");
+    }
+
+    /**
+     * Adds the same rows to every build, one per node, and one more row if {@link #extra} is set.
+     */
+    private static final class Rows extends TestBuilder {
+        private String extra;
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            FirstBuildAction action = FirstBuildAction.getOrCreate(build);
+            for(int i = 0; i < 10; i++) {
+                action.addInfo("node-" + i, "1.8.0_292");
+            }
+            if(extra != null) {
+                action.addInfo(extra, "11.0.11");
+            }
+            return true;
+        }
+    }
+}
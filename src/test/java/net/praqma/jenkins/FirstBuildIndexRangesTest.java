@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes the build numbers of a {@link FirstBuildIndex} as ranges and reads them back.
+ *
+ * @author Praqma
+ */
+public class FirstBuildIndexRangesTest {
+
+    @Test
+    public void consecutiveNumbersBecomeRanges() {
+        assertEquals("1-3,5,7-8", FirstBuildIndex.formatRanges(numbers(1, 2, 3, 5, 7, 8)));
+    }
+
+    @Test
+    public void emptyIsTheEmptyString() {
+        assertEquals("", FirstBuildIndex.formatRanges(numbers()));
+        assertTrue(FirstBuildIndex.parseRanges("").isEmpty());
+        assertTrue(FirstBuildIndex.parseRanges(null).isEmpty());
+    }
+
+    @Test
+    public void rangesAreReadBack() {
+        assertEquals(numbers(1, 2, 3, 5, 7, 8), FirstBuildIndex.parseRanges("1-3,5,7-8"));
+        assertEquals(numbers(42), FirstBuildIndex.parseRanges("42"));
+    }
+
+    @Test
+    public void formatAndParseRoundTrip() {
+        NavigableSet<Integer> numbers = numbers(1, 4, 5, 6, 10, 12, 13, 200, 201);
+        assertEquals(numbers, FirstBuildIndex.parseRanges(FirstBuildIndex.formatRanges(numbers)));
+    }
+
+    private static NavigableSet<Integer> numbers(Integer... numbers) {
+        return new TreeSet<Integer>(Arrays.asList(numbers));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 Praqma.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.praqma.jenkins;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Walks the breaker of a {@link FirstProbeGuard} through closed, open and half open, on a clock the test moves.
+ *
+ * @author Praqma
+ */
+public class FirstProbeGuardTest {
+
+    private static final long DEADLINE_MILLIS = 1000;
+    private static final long FAST_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(DEADLINE_MILLIS);
+    private static final FirstJavaVersion VERSION = new FirstJavaVersion("1.8.0_292", "Oracle Corporation", null, FirstJavaVersion.Source.SYSTEM_PROPERTIES);
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private long now;
+    private final FirstProbeGuard guard = new FirstProbeGuard() {
+        @Override
+        long now() {
+            return now;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        FirstConfiguration.get().setBreakerFailures(2);
+        FirstConfiguration.get().setBreakerCooldownMinutes(1);
+    }
+
+    @Test
+    public void opensAfterTooManyFailures() {
+        assertTrue(guard.allow("slave"));
+        guard.record("slave", null, FAST_NANOS, DEADLINE_MILLIS);
+        assertTrue(guard.allow("slave"));
+        //Slow counts as failed, even with an answer
+        guard.record("slave", VERSION, SLOW_NANOS, DEADLINE_MILLIS);
+        assertFalse(guard.allow("slave"));
+        //Other nodes are not affected
+        assertTrue(guard.allow("other"));
+    }
+
+    @Test
+    public void successResetsTheFailures() {
+        guard.record("slave", null, FAST_NANOS, DEADLINE_MILLIS);
+        guard.record("slave", VERSION, FAST_NANOS, DEADLINE_MILLIS);
+        guard.record("slave", null, FAST_NANOS, DEADLINE_MILLIS);
+        assertTrue(guard.allow("slave"));
+    }
+
+    @Test
+    public void halfOpenLetsOneTrialThrough() {
+        open("slave");
+        now += TimeUnit.MINUTES.toMillis(1);
+        assertTrue(guard.allow("slave"));
+        assertFalse(guard.allow("slave"));
+
+        guard.record("slave", VERSION, FAST_NANOS, DEADLINE_MILLIS);
+        assertTrue(guard.allow("slave"));
+        assertTrue(guard.allow("slave"));
+    }
+
+    @Test
+    public void failedTrialOpensAgain() {
+        open("slave");
+        now += TimeUnit.MINUTES.toMillis(1);
+        assertTrue(guard.allow("slave"));
+        guard.record("slave", null, FAST_NANOS, DEADLINE_MILLIS);
+        assertFalse(guard.allow("slave"));
+
+        now += TimeUnit.MINUTES.toMillis(1);
+        assertTrue(guard.allow("slave"));
+    }
+
+    @Test
+    public void releasedTrialLetsTheNextCallerTry() {
+        open("slave");
+        now += TimeUnit.MINUTES.toMillis(1);
+        assertTrue(guard.allow("slave"));
+        guard.release("slave");
+        assertTrue(guard.allow("slave"));
+    }
+
+    @Test
+    public void unguardedProbeLeavesTheTrialRunning() {
+        open("slave");
+        now += TimeUnit.MINUTES.toMillis(1);
+        assertTrue(guard.allow("slave"));
+        guard.recordUnguarded("slave", null, FAST_NANOS, DEADLINE_MILLIS);
+        assertFalse(guard.allow("slave"));
+    }
+
+    @Test
+    public void resetCloses() {
+        open("slave");
+        guard.reset("slave");
+        assertTrue(guard.allow("slave"));
+    }
+
+    @Test
+    public void fallbackIsTheLastKnownVersion() {
+        assertNull(guard.fallback("slave"));
+        guard.record("slave", VERSION, FAST_NANOS, DEADLINE_MILLIS);
+        guard.record("slave", null, FAST_NANOS, DEADLINE_MILLIS);
+        assertEquals(VERSION, guard.fallback("slave").getJavaVersion());
+    }
+
+    @Test
+    public void removedNodesAreForgotten() {
+        guard.record("slave", VERSION, FAST_NANOS, DEADLINE_MILLIS);
+        guard.record("gone", VERSION, FAST_NANOS, DEADLINE_MILLIS);
+        guard.retain(Collections.singleton("slave"));
+        assertEquals(VERSION, guard.lastKnown("slave"));
+        assertNull(guard.lastKnown("gone"));
+    }
+
+    private void open(String node) {
+        guard.record(node, null, FAST_NANOS, DEADLINE_MILLIS);
+        guard.record(node, null, FAST_NANOS, DEADLINE_MILLIS);
+        assertFalse(guard.allow(node));
+    }
+}